@@ -0,0 +1,86 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Benchmark of how much memory a game allocates per turn, which should be
+ * close to nothing once the JIT has warmed up: positions are packed ints,
+ * barrels are bits, and the sensor arrays are reused. Runs lockstep games on
+ * a big map with lots of barrels (kept topped up), starting a new game
+ * whenever one ends, and reads this thread's allocation counter around the
+ * turns.
+ *
+ * Usage: AllocationBenchmark [size] [robots] [barrels] [ticks] [program...]
+ */
+public class AllocationBenchmark {
+
+	public static void main(String[] args) {
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+		int n = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+		int barrels = (args.length > 2) ? Integer.parseInt(args[2]) : 4000;
+		int ticks = (args.length > 3) ? Integer.parseInt(args[3]) : 20000;
+		RobotProgramNode[] programs = new RobotProgramNode[Math.max(0, args.length - 4)];
+		for (int i = 4; i < args.length; i++) {
+			programs[i - 4] = ProgramCache.shared().load(new File(args[i]));
+		}
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+			System.out.println("this JVM can't count allocated memory per thread");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mx;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		// warm up first, so what's measured is the compiled code
+		measure(threads, size, n, barrels, ticks / 4, programs, 1000);
+		long[] result = measure(threads, size, n, barrels, ticks, programs, 1);
+		long turns = result[0], bytes = result[1], nanos = result[2];
+
+		System.out.printf("%dx%d world, %d robots, %d barrels%n", size, size, n, barrels);
+		System.out.printf("%d turns in %dms (%.0f turns/s)%n", turns, nanos / 1000000, turns * 1e9 / nanos);
+		System.out.printf("%.1f bytes allocated per turn, %.2f per robot per turn%n",
+				(double) bytes / turns, (double) bytes / turns / n);
+	}
+
+	/**
+	 * Plays games until ticks turns have been played, starting a new game
+	 * whenever one ends. Only the turns are measured, not setting up games.
+	 * Returns the turns played, bytes allocated and nanoseconds taken.
+	 */
+	private static long[] measure(com.sun.management.ThreadMXBean threads, int size, int n, int barrels, int ticks,
+			RobotProgramNode[] programs, long seed) {
+		long turns = 0, bytes = 0, nanos = 0;
+		while (turns < ticks) {
+			World world = new World(seed++, n, size);
+			LockstepEngine engine = new LockstepEngine(world, programs);
+			Random rand = new Random(seed);
+			topUp(world, barrels, rand);
+			world.addInitialFuel();
+			long before = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			turns += play(engine, world, barrels, rand, (int) (ticks - turns));
+			nanos += System.nanoTime() - start;
+			bytes += threads.getCurrentThreadAllocatedBytes() - before;
+		}
+		return new long[] { turns, bytes, nanos };
+	}
+
+	/** Plays up to ticks turns, returning how many were played */
+	private static int play(LockstepEngine engine, World world, int barrels, Random rand, int ticks) {
+		int t = 0;
+		while (t < ticks && !engine.over()) {
+			engine.tick();
+			topUp(world, barrels, rand);
+			t++;
+		}
+		return t;
+	}
+
+	private static void topUp(World world, int barrels, Random rand) {
+		BarrelIndex index = world.getBarrels();
+		while (index.size() < barrels) {
+			index.add(rand.nextInt(world.getSize()), rand.nextInt(world.getSize()));
+		}
+	}
+}
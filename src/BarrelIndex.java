@@ -0,0 +1,300 @@
+import java.awt.Point;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The fuel barrels in a world, as one bit per cell. Each row of the grid is a
+ * whole number of longs, and the grid is also split into square buckets with
+ * a count of the barrels in each, so the barrels nearest a robot can be found
+ * by searching outwards from its bucket, skipping empty buckets and only
+ * looking at the buckets close enough to hold one of the nearest.
+ *
+ * Robots take barrels from their own threads while the world adds them, so
+ * the bits are set and cleared atomically. Nothing here allocates except the
+ * Set view used for drawing.
+ */
+public class BarrelIndex {
+
+	/** most buckets along a side, so searching a big, sparse map doesn't visit lots of empty buckets */
+	private static final int MAX_BUCKETS = 64;
+
+	private final int size;
+	/** width and height of a bucket, in cells */
+	private final int bucket;
+	private final int buckets;
+	private final int wordsPerRow;
+	private final AtomicLongArray cells;
+	private final AtomicIntegerArray counts;
+	private final AtomicInteger count = new AtomicInteger();
+	private final Set<Point> view = new View();
+
+	public BarrelIndex(int size) {
+		this.size = size;
+		bucket = Math.max(8, (size + MAX_BUCKETS - 1) / MAX_BUCKETS);
+		buckets = (size + bucket - 1) / bucket;
+		wordsPerRow = (size + 63) / 64;
+		cells = new AtomicLongArray(wordsPerRow * size);
+		counts = new AtomicIntegerArray(buckets * buckets);
+	}
+
+	private int bucket(int x, int y) {
+		return (y / bucket) * buckets + x / bucket;
+	}
+
+	/** Adds a barrel, returns false if there already is one there */
+	public boolean add(int x, int y) {
+		check(x, y);
+		int word = y * wordsPerRow + (x >>> 6);
+		long bit = 1L << x;
+		long old;
+		do {
+			old = cells.get(word);
+			if ((old & bit) != 0) {
+				return false;
+			}
+		} while (!cells.compareAndSet(word, old, old | bit));
+		counts.incrementAndGet(bucket(x, y));
+		count.incrementAndGet();
+		return true;
+	}
+
+	/** Removes a barrel, returns false if there wasn't one there */
+	public boolean remove(int x, int y) {
+		check(x, y);
+		int word = y * wordsPerRow + (x >>> 6);
+		long bit = 1L << x;
+		long old;
+		do {
+			old = cells.get(word);
+			if ((old & bit) == 0) {
+				return false;
+			}
+		} while (!cells.compareAndSet(word, old, old & ~bit));
+		counts.decrementAndGet(bucket(x, y));
+		count.decrementAndGet();
+		return true;
+	}
+
+	/** Throws IllegalArgumentException for a cell outside the world, whose bit would be in another row */
+	private void check(int x, int y) {
+		if (x < 0 || y < 0 || x >= size || y >= size) {
+			throw new IllegalArgumentException("(" + x + ", " + y + ") is outside a " + size + "x" + size + " world");
+		}
+	}
+
+	public boolean contains(int x, int y) {
+		if (x < 0 || y < 0 || x >= size || y >= size) {
+			return false;
+		}
+		return (cells.get(y * wordsPerRow + (x >>> 6)) & (1L << x)) != 0;
+	}
+
+	public int size() {
+		return count.get();
+	}
+
+	public boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	public void clear() {
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x += 64) {
+				long word = cells.getAndSet(y * wordsPerRow + (x >>> 6), 0);
+				for (; word != 0; word &= word - 1) {
+					int cx = x + Long.numberOfTrailingZeros(word);
+					counts.decrementAndGet(bucket(cx, y));
+					count.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/** How many longs copyBits needs */
+	int words() {
+		return cells.length();
+	}
+
+	/**
+	 * Copies the bits into out: each row is words() / size longs, bit b of a
+	 * long being the cell 64 * (the long's index in its row) + b along.
+	 */
+	void copyBits(long[] out) {
+		for (int i = 0; i < out.length; i++) {
+			out[i] = cells.get(i);
+		}
+	}
+
+	/** The cell for bit b of long w of copyBits, as y * size + x */
+	int index(int w, int b) {
+		return (w / wordsPerRow) * size + ((w % wordsPerRow) << 6) + b;
+	}
+
+	/** A read only view of every barrel, for drawing */
+	public Set<Point> view() {
+		return view;
+	}
+
+	// =======================================================
+	// Nearest barrels
+	// =======================================================
+
+	/**
+	 * Finds up to k barrels nearest to (x, y) by Manhattan distance and puts
+	 * them in out, nearest first, returning how many there are. Barrels the
+	 * same distance away are ordered by row, then column. out needs room for
+	 * k; read the results with cell(out[i]) and distance(out[i]).
+	 *
+	 * Each result is one long ordered the same way as the barrels, so the best
+	 * k so far can be kept in a max heap in out itself: each barrel looked at
+	 * costs O(log k), and only the buckets that could hold a closer one are
+	 * searched.
+	 */
+	public int nearest(int x, int y, int k, long[] out) {
+		int capacity = Math.min(k, count.get());
+		if (capacity <= 0) {
+			return 0;
+		}
+		int found = 0;
+		int bx = x / bucket, by = y / bucket;
+		int maxRing = Math.max(Math.max(bx, by), Math.max(buckets - 1 - bx, buckets - 1 - by));
+		for (int r = 0; r <= maxRing; r++) {
+			// the buckets r away, top and bottom rows then the sides between them
+			for (int i = -r; i <= r; i++) {
+				found = search(bx + i, by - r, x, y, out, capacity, found);
+				if (r > 0) {
+					found = search(bx + i, by + r, x, y, out, capacity, found);
+				}
+			}
+			for (int j = -r + 1; j <= r - 1; j++) {
+				found = search(bx - r, by + j, x, y, out, capacity, found);
+				found = search(bx + r, by + j, x, y, out, capacity, found);
+			}
+			// every barrel further out is more than r buckets away
+			if (found == capacity && distance(out[0]) <= r * bucket) {
+				break;
+			}
+		}
+		// heap sort, the largest is at the top so it goes to the end
+		for (int n = found - 1; n > 0; n--) {
+			long top = out[0];
+			siftDown(out, out[n], n);
+			out[n] = top;
+		}
+		return found;
+	}
+
+	/** The barrel's cell, packed as by Cell.pack */
+	static int cell(long result) {
+		return (int) result;
+	}
+
+	static int distance(long result) {
+		return (int) (result >>> 32);
+	}
+
+	/** Offers every barrel in a bucket to the heap, returning how many are in it now */
+	private int search(int bx, int by, int x, int y, long[] heap, int capacity, int found) {
+		if (bx < 0 || by < 0 || bx >= buckets || by >= buckets || counts.get(by * buckets + bx) == 0) {
+			return found;
+		}
+		int x0 = bx * bucket, x1 = Math.min(size, x0 + bucket);
+		int y0 = by * bucket, y1 = Math.min(size, y0 + bucket);
+		for (int cy = y0; cy < y1; cy++) {
+			int row = cy * wordsPerRow;
+			for (int w = x0 >>> 6; w <= (x1 - 1) >>> 6; w++) {
+				long word = cells.get(row + w);
+				// just the bucket's part of the word
+				int from = Math.max(x0 - (w << 6), 0), to = Math.min(x1 - (w << 6), 64);
+				word &= (-1L << from) & ((to == 64) ? -1L : (1L << to) - 1);
+				for (; word != 0; word &= word - 1) {
+					int cx = (w << 6) + Long.numberOfTrailingZeros(word);
+					long result = ((long) (Math.abs(cx - x) + Math.abs(cy - y)) << 32) | Cell.pack(cx, cy);
+					if (found < capacity) {
+						siftUp(heap, result, found++);
+					} else if (result < heap[0]) {
+						siftDown(heap, result, found);
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private static void siftUp(long[] heap, long value, int i) {
+		while (i > 0 && heap[(i - 1) / 2] < value) {
+			heap[i] = heap[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		heap[i] = value;
+	}
+
+	/** Replaces the top of the first n entries with value */
+	private static void siftDown(long[] heap, long value, int n) {
+		int i = 0;
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				break;
+			}
+			if (child + 1 < n && heap[child + 1] > heap[child]) {
+				child++;
+			}
+			if (heap[child] <= value) {
+				break;
+			}
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = value;
+	}
+
+	// =======================================================
+	// View
+	// =======================================================
+
+	private final class View extends AbstractSet<Point> {
+
+		@Override
+		public int size() {
+			return BarrelIndex.this.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof Point) && BarrelIndex.this.contains(((Point) o).x, ((Point) o).y);
+		}
+
+		@Override
+		public Iterator<Point> iterator() {
+			return new Iterator<Point>() {
+
+				private int word = -1;
+				private long bits;
+
+				@Override
+				public boolean hasNext() {
+					while (bits == 0 && word + 1 < cells.length()) {
+						bits = cells.get(++word);
+					}
+					return bits != 0;
+				}
+
+				@Override
+				public Point next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int x = ((word % wordsPerRow) << 6) + Long.numberOfTrailingZeros(bits);
+					bits &= bits - 1;
+					return new Point(x, word / wordsPerRow);
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,468 @@
+import java.util.Arrays;
+
+/**
+ * A register based bytecode for robot programs, and the VM that runs it.
+ *
+ * A program is compiled from the lowered tree into one flat int array: an
+ * opcode followed by its operands. Expressions are evaluated into numbered
+ * registers, conditions compile to conditional jumps (with and/or short
+ * circuiting done by jumping), and loops/ifs become plain jumps, so running a
+ * program is a single dispatch loop with no recursion.
+ */
+public class Bytecode implements RobotProgramNode {
+
+	// opcodes, with their operands
+	static final int HALT = 0,               //
+			CONST = 1,                       // r value
+			LOAD = 2,                        // r slot
+			STORE = 3,                       // slot r
+			SENSE = 4,                       // r sensor
+			ADD = 5, SUB = 6, MUL = 7, DIV = 8, // r a b
+			JMP = 9,                         // target
+			JLT = 10, JGT = 11, JEQ = 12,    // a b target, jump if a relop b
+			JGE = 13, JLE = 14, JNE = 15,    // a b target, jump if not (a relop b)
+			JDEAD = 16,                      // target, jump if the robot is dead
+			ACT = 17,                        // action
+			LOOP = 18,                       // target, jump back to the top of a loop
+			REPEAT = 19,                     // action r, move or wait r times
+			BARREL = 20;                     // r part, r = that part of the nth closest barrel (n in r)
+
+	// sensors
+	static final int FUEL_LEFT = 0, OPP_LR = 1, OPP_FB = 2, NUM_BARRELS = 3,
+			BARREL_LR = 4, BARREL_FB = 5, WALL_DIST = 6, BARREL_DIST = 7;
+
+	// actions
+	static final int MOVE = 0, WAIT = 1, TURN_L = 2, TURN_R = 3, TAKE_FUEL = 4,
+			TURN_AROUND = 5, SHIELD_ON = 6, SHIELD_OFF = 7;
+
+	final int[] code;
+	final int registers;
+	final int frameSize;
+	final int sensorMask;
+	final int barrelDepth;
+
+	Bytecode(int[] code, int registers, int frameSize, int sensorMask, int barrelDepth) {
+		this.code = code;
+		this.registers = registers;
+		this.frameSize = frameSize;
+		this.sensorMask = sensorMask;
+		this.barrelDepth = barrelDepth;
+	}
+
+	@Override
+	public int frameSize() {
+		return frameSize;
+	}
+
+	@Override
+	public int sensorMask() {
+		return sensorMask;
+	}
+
+	@Override
+	public int barrelDepth() {
+		return barrelDepth;
+	}
+
+	@Override
+	public void execute(Robot robot) {
+		run(robot, new int[registers], 0, false);
+	}
+
+	/**
+	 * A paused run of a program, for engines that run several robots on one
+	 * thread. Each resume runs the program up to its next action.
+	 */
+	static final class Runner {
+
+		private final Bytecode program;
+		private final int[] registers;
+		private int pc;
+
+		Runner(Bytecode program) {
+			this.program = program;
+			this.registers = new int[program.registers];
+		}
+
+		/**
+		 * Runs until the robot has an action waiting for the next turn. Returns
+		 * false once the program has ended.
+		 */
+		boolean resume(Robot robot) {
+			if (pc >= 0) {
+				pc = program.run(robot, registers, pc, true);
+			}
+			return pc >= 0;
+		}
+	}
+
+	/**
+	 * Runs from pc until the program halts (returning -1) or, if yield is set,
+	 * until the robot has an action pending (returning where to carry on from).
+	 */
+	private int run(Robot robot, final int[] r, int pc, boolean yield) {
+		final int[] code = this.code;
+		for (;;) {
+			switch (code[pc]) {
+			case HALT:
+				return -1;
+			case CONST:
+				r[code[pc + 1]] = code[pc + 2];
+				pc += 3;
+				break;
+			case LOAD:
+				r[code[pc + 1]] = robot.getVariable(code[pc + 2]);
+				pc += 3;
+				break;
+			case STORE:
+				robot.setVariable(code[pc + 1], r[code[pc + 2]]);
+				pc += 3;
+				break;
+			case SENSE:
+				r[code[pc + 1]] = sense(robot, code[pc + 2]);
+				pc += 3;
+				break;
+			case BARREL:
+				r[code[pc + 1]] = barrel(robot, code[pc + 2], r[code[pc + 1]]);
+				pc += 3;
+				break;
+			case ADD:
+				r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+				pc += 4;
+				break;
+			case SUB:
+				r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+				pc += 4;
+				break;
+			case MUL:
+				r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+				pc += 4;
+				break;
+			case DIV:
+				r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]];
+				pc += 4;
+				break;
+			case JMP:
+				pc = code[pc + 1];
+				break;
+			case LOOP:
+				robot.chargeInstruction();
+				pc = code[pc + 1];
+				// a program over its budget is made to wait
+				if (yield && robot.actionPending())
+					return pc;
+				break;
+			case JLT:
+				pc = (r[code[pc + 1]] < r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JGT:
+				pc = (r[code[pc + 1]] > r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JEQ:
+				pc = (r[code[pc + 1]] == r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JGE:
+				pc = (r[code[pc + 1]] >= r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JLE:
+				pc = (r[code[pc + 1]] <= r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JNE:
+				pc = (r[code[pc + 1]] != r[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+				break;
+			case JDEAD:
+				pc = robot.isDead() ? code[pc + 1] : pc + 2;
+				break;
+			case ACT:
+				act(robot, code[pc + 1]);
+				pc += 2;
+				if (yield && robot.actionPending())
+					return pc;
+				break;
+			case REPEAT:
+				if (code[pc + 1] == MOVE)
+					robot.move(r[code[pc + 2]]);
+				else
+					robot.idleWait(r[code[pc + 2]]);
+				pc += 3;
+				if (yield && robot.actionPending())
+					return pc;
+				break;
+			default:
+				throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+			}
+		}
+	}
+
+	private static int sense(Robot robot, int sensor) {
+		SensorSnapshot s = robot.sensors();
+		switch (sensor) {
+		case FUEL_LEFT:
+			return s.fuel();
+		case OPP_LR:
+			return s.oppLR();
+		case OPP_FB:
+			return s.oppFB();
+		case NUM_BARRELS:
+			return s.numBarrels();
+		case BARREL_LR:
+			return s.barrelLR();
+		case BARREL_FB:
+			return s.barrelFB();
+		case BARREL_DIST:
+			return s.barrelDist();
+		default:
+			return s.wallDist();
+		}
+	}
+
+	private static int barrel(Robot robot, int part, int n) {
+		switch (part) {
+		case LoweredNode.NthBarrel.LR:
+			return robot.barrelLR(n);
+		case LoweredNode.NthBarrel.FB:
+			return robot.barrelFB(n);
+		default:
+			return robot.barrelDist(n);
+		}
+	}
+
+	private static void act(Robot robot, int action) {
+		switch (action) {
+		case MOVE:
+			robot.move();
+			break;
+		case TURN_L:
+			robot.turnLeft();
+			break;
+		case TURN_R:
+			robot.turnRight();
+			break;
+		case TAKE_FUEL:
+			robot.takeFuel();
+			break;
+		case TURN_AROUND:
+			robot.turnAround();
+			break;
+		case SHIELD_ON:
+			robot.setShield(true);
+			break;
+		case SHIELD_OFF:
+			robot.setShield(false);
+			break;
+		default:
+			robot.idleWait();
+		}
+	}
+
+	// =======================================================
+	// Compiler
+	// =======================================================
+
+	/**
+	 * Compiles a lowered program. Anything else is returned unchanged.
+	 */
+	public static RobotProgramNode compile(RobotProgramNode prog) {
+		if (!(prog instanceof LoweredNode.Program)) {
+			return prog;
+		}
+		LoweredNode.Program p = (LoweredNode.Program) prog;
+		Compiler c = new Compiler();
+		for (LoweredNode.Stmt s : p.body) {
+			c.statement(s);
+		}
+		c.emit(HALT);
+		return new Bytecode(Arrays.copyOf(c.code, c.size), Math.max(1, c.maxRegister), p.frameSize, p.sensorMask, p.barrelDepth);
+	}
+
+	private static class Compiler {
+
+		int[] code = new int[64];
+		int size;
+		int maxRegister;
+
+		void emit(int... ops) {
+			if (size + ops.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, size + ops.length));
+			}
+			for (int op : ops) {
+				code[size++] = op;
+			}
+		}
+
+		/** Fills in the jump target at the given position with the current position. */
+		void patch(int at) {
+			code[at] = size;
+		}
+
+		void statement(LoweredNode.Stmt s) {
+			if (s instanceof LoweredNode.Block) {
+				for (LoweredNode.Stmt inner : ((LoweredNode.Block) s).body) {
+					statement(inner);
+				}
+			} else if (s instanceof LoweredNode.Loop) {
+				int top = size;
+				emit(JDEAD, -1);
+				int exit = size - 1;
+				statement(((LoweredNode.Loop) s).body);
+				emit(LOOP, top);
+				patch(exit);
+			} else if (s instanceof LoweredNode.While) {
+				LoweredNode.While w = (LoweredNode.While) s;
+				int top = size;
+				int[] exits = condition(w.cond, false);
+				statement(w.body);
+				emit(LOOP, top);
+				patchAll(exits);
+			} else if (s instanceof LoweredNode.If) {
+				LoweredNode.If i = (LoweredNode.If) s;
+				int[] elseJumps = condition(i.cond, false);
+				statement(i.then);
+				if (i.otherwise != null) {
+					emit(JMP, -1);
+					int end = size - 1;
+					patchAll(elseJumps);
+					statement(i.otherwise);
+					patch(end);
+				} else {
+					patchAll(elseJumps);
+				}
+			} else if (s instanceof LoweredNode.Assign) {
+				LoweredNode.Assign a = (LoweredNode.Assign) s;
+				expression(a.value, 0);
+				emit(STORE, a.slot, 0);
+			} else if (s instanceof LoweredNode.Move && ((LoweredNode.Move) s).steps != null) {
+				expression(((LoweredNode.Move) s).steps, 0);
+				emit(REPEAT, MOVE, 0);
+			} else if (s instanceof LoweredNode.Wait && ((LoweredNode.Wait) s).turns != null) {
+				expression(((LoweredNode.Wait) s).turns, 0);
+				emit(REPEAT, WAIT, 0);
+			} else {
+				emit(ACT, action(s));
+			}
+		}
+
+		void patchAll(int[] jumps) {
+			for (int at : jumps) {
+				patch(at);
+			}
+		}
+
+		/**
+		 * Emits code that jumps when the condition evaluates to jumpWhen, and
+		 * falls through otherwise. Returns the positions of the jump targets, to
+		 * be patched by the caller.
+		 */
+		int[] condition(LoweredNode.Cond c, boolean jumpWhen) {
+			if (c instanceof LoweredNode.Not) {
+				return condition(((LoweredNode.Not) c).a, !jumpWhen);
+			} else if (c instanceof LoweredNode.And || c instanceof LoweredNode.Or) {
+				boolean isAnd = c instanceof LoweredNode.And;
+				LoweredNode.Cond a = isAnd ? ((LoweredNode.And) c).a : ((LoweredNode.Or) c).a;
+				LoweredNode.Cond b = isAnd ? ((LoweredNode.And) c).b : ((LoweredNode.Or) c).b;
+				// and jumping on false / or jumping on true: either operand decides it
+				if (isAnd != jumpWhen) {
+					return concat(condition(a, jumpWhen), condition(b, jumpWhen));
+				}
+				// otherwise the first operand can only short circuit past the second
+				int[] skip = condition(a, !jumpWhen);
+				int[] jumps = condition(b, jumpWhen);
+				patchAll(skip);
+				return jumps;
+			}
+			LoweredNode.Expr a, b;
+			int op;
+			if (c instanceof LoweredNode.Lt) {
+				a = ((LoweredNode.Lt) c).a;
+				b = ((LoweredNode.Lt) c).b;
+				op = jumpWhen ? JLT : JGE;
+			} else if (c instanceof LoweredNode.Gt) {
+				a = ((LoweredNode.Gt) c).a;
+				b = ((LoweredNode.Gt) c).b;
+				op = jumpWhen ? JGT : JLE;
+			} else {
+				a = ((LoweredNode.Eq) c).a;
+				b = ((LoweredNode.Eq) c).b;
+				op = jumpWhen ? JEQ : JNE;
+			}
+			expression(a, 0);
+			expression(b, 1);
+			emit(op, 0, 1, -1);
+			return new int[] { size - 1 };
+		}
+
+		/**
+		 * Emits code leaving the value of the expression in register r, using
+		 * registers above r as scratch.
+		 */
+		void expression(LoweredNode.Expr e, int r) {
+			maxRegister = Math.max(maxRegister, r + 1);
+			if (e instanceof LoweredNode.Const) {
+				emit(CONST, r, ((LoweredNode.Const) e).value);
+			} else if (e instanceof LoweredNode.Var) {
+				emit(LOAD, r, ((LoweredNode.Var) e).slot);
+			} else if (e instanceof LoweredNode.Add) {
+				binary(ADD, ((LoweredNode.Add) e).a, ((LoweredNode.Add) e).b, r);
+			} else if (e instanceof LoweredNode.Sub) {
+				binary(SUB, ((LoweredNode.Sub) e).a, ((LoweredNode.Sub) e).b, r);
+			} else if (e instanceof LoweredNode.Mul) {
+				binary(MUL, ((LoweredNode.Mul) e).a, ((LoweredNode.Mul) e).b, r);
+			} else if (e instanceof LoweredNode.Div) {
+				binary(DIV, ((LoweredNode.Div) e).a, ((LoweredNode.Div) e).b, r);
+			} else if (e instanceof LoweredNode.NthBarrel) {
+				expression(((LoweredNode.NthBarrel) e).n, r);
+				emit(BARREL, r, ((LoweredNode.NthBarrel) e).part);
+			} else {
+				emit(SENSE, r, sensor(e));
+			}
+		}
+
+		void binary(int op, LoweredNode.Expr a, LoweredNode.Expr b, int r) {
+			expression(a, r);
+			expression(b, r + 1);
+			emit(op, r, r, r + 1);
+		}
+	}
+
+	private static int[] concat(int[] a, int[] b) {
+		int[] both = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+		return both;
+	}
+
+	private static int sensor(LoweredNode.Expr e) {
+		if (e instanceof LoweredNode.FuelLeft)
+			return FUEL_LEFT;
+		if (e instanceof LoweredNode.OppLR)
+			return OPP_LR;
+		if (e instanceof LoweredNode.OppFB)
+			return OPP_FB;
+		if (e instanceof LoweredNode.NumBarrels)
+			return NUM_BARRELS;
+		if (e instanceof LoweredNode.BarrelLR)
+			return BARREL_LR;
+		if (e instanceof LoweredNode.BarrelFB)
+			return BARREL_FB;
+		if (e instanceof LoweredNode.BarrelDist)
+			return BARREL_DIST;
+		return WALL_DIST;
+	}
+
+	private static int action(LoweredNode.Stmt s) {
+		if (s instanceof LoweredNode.Move)
+			return MOVE;
+		if (s instanceof LoweredNode.TurnL)
+			return TURN_L;
+		if (s instanceof LoweredNode.TurnR)
+			return TURN_R;
+		if (s instanceof LoweredNode.TakeFuel)
+			return TAKE_FUEL;
+		if (s instanceof LoweredNode.TurnAround)
+			return TURN_AROUND;
+		if (s instanceof LoweredNode.ShieldOn)
+			return SHIELD_ON;
+		if (s instanceof LoweredNode.ShieldOff)
+			return SHIELD_OFF;
+		return WAIT;
+	}
+}
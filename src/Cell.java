@@ -0,0 +1,28 @@
+/**
+ * A grid cell packed into one int, so positions can be kept and passed around
+ * without allocating Points. x is the low 16 bits and y the high 16, both
+ * signed, so offsets relative to a robot pack the same way.
+ */
+final class Cell {
+
+	/** not a cell, for example when there's no opponent */
+	static final int NONE = Integer.MIN_VALUE;
+
+	/** the largest coordinate that packs */
+	static final int MAX = Short.MAX_VALUE;
+
+	private Cell() {
+	}
+
+	static int pack(int x, int y) {
+		return (y << 16) | (x & 0xFFFF);
+	}
+
+	static int x(int cell) {
+		return (short) cell;
+	}
+
+	static int y(int cell) {
+		return cell >> 16;
+	}
+}
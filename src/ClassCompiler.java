@@ -0,0 +1,283 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles a lowered program into a JVM class, so the JIT can optimize a robot
+ * program the same way as hand written Java like Robot.defaultProgram. Sensor
+ * reads and actions become direct Robot calls and control flow becomes real
+ * JVM branches.
+ *
+ * The class is generated as Java source, compiled in memory with the system
+ * compiler and defined as a hidden class. Hidden classes aren't registered
+ * with any class loader, so each one is unloaded as soon as its program is
+ * no longer referenced. If there is no compiler (running on a JRE) or the
+ * program is too big for one method, the program is run on the bytecode VM
+ * instead.
+ */
+public class ClassCompiler {
+
+	private static final String CLASS_NAME = "RobotProgramClass";
+
+	private static final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+	/**
+	 * Compiles a lowered program. Anything else is returned unchanged.
+	 */
+	public static RobotProgramNode compile(RobotProgramNode prog) {
+		if (!(prog instanceof LoweredNode.Program)) {
+			return prog;
+		}
+		LoweredNode.Program p = (LoweredNode.Program) prog;
+		if (javac == null) {
+			return Bytecode.compile(p);
+		}
+		String source = generate(p);
+		byte[] bytes = compileSource(source);
+		if (bytes == null) {
+			return Bytecode.compile(p);
+		}
+		try {
+			Class<?> cls = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+			return (RobotProgramNode) cls.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Couldn't load compiled program: " + e);
+			return Bytecode.compile(p);
+		}
+	}
+
+	// =======================================================
+	// Source generation
+	// =======================================================
+
+	static String generate(LoweredNode.Program p) {
+		StringBuilder out = new StringBuilder();
+		out.append("final class ").append(CLASS_NAME).append(" implements RobotProgramNode {\n");
+		out.append("\tpublic int frameSize() {\n\t\treturn ").append(p.frameSize).append(";\n\t}\n");
+		out.append("\tpublic int sensorMask() {\n\t\treturn ").append(p.sensorMask).append(";\n\t}\n");
+		out.append("\tpublic int barrelDepth() {\n\t\treturn ").append(p.barrelDepth).append(";\n\t}\n");
+		out.append("\tpublic void execute(Robot robot) {\n");
+		for (LoweredNode.Stmt s : p.body) {
+			statement(s, out, 2);
+		}
+		out.append("\t}\n}\n");
+		return out.toString();
+	}
+
+	private static void indent(StringBuilder out, int depth) {
+		for (int i = 0; i < depth; i++) {
+			out.append('\t');
+		}
+	}
+
+	private static void statement(LoweredNode.Stmt s, StringBuilder out, int depth) {
+		if (s instanceof LoweredNode.Block) {
+			for (LoweredNode.Stmt inner : ((LoweredNode.Block) s).body) {
+				statement(inner, out, depth);
+			}
+			return;
+		}
+		indent(out, depth);
+		if (s instanceof LoweredNode.Loop) {
+			out.append("while (!robot.isDead()) {\n");
+			indent(out, depth + 1);
+			out.append("robot.chargeInstruction();\n");
+			statement(((LoweredNode.Loop) s).body, out, depth + 1);
+			indent(out, depth);
+			out.append("}\n");
+		} else if (s instanceof LoweredNode.While) {
+			LoweredNode.While w = (LoweredNode.While) s;
+			out.append("while (");
+			condition(w.cond, out);
+			out.append(") {\n");
+			indent(out, depth + 1);
+			out.append("robot.chargeInstruction();\n");
+			statement(w.body, out, depth + 1);
+			indent(out, depth);
+			out.append("}\n");
+		} else if (s instanceof LoweredNode.If) {
+			LoweredNode.If i = (LoweredNode.If) s;
+			out.append("if (");
+			condition(i.cond, out);
+			out.append(") {\n");
+			statement(i.then, out, depth + 1);
+			if (i.otherwise != null) {
+				indent(out, depth);
+				out.append("} else {\n");
+				statement(i.otherwise, out, depth + 1);
+			}
+			indent(out, depth);
+			out.append("}\n");
+		} else if (s instanceof LoweredNode.Assign) {
+			LoweredNode.Assign a = (LoweredNode.Assign) s;
+			out.append("robot.setVariable(").append(a.slot).append(", ");
+			expression(a.value, out);
+			out.append(");\n");
+		} else if (s instanceof LoweredNode.Move && ((LoweredNode.Move) s).steps != null) {
+			out.append("robot.move(");
+			expression(((LoweredNode.Move) s).steps, out);
+			out.append(");\n");
+		} else if (s instanceof LoweredNode.Wait && ((LoweredNode.Wait) s).turns != null) {
+			out.append("robot.idleWait(");
+			expression(((LoweredNode.Wait) s).turns, out);
+			out.append(");\n");
+		} else {
+			out.append(action(s)).append(";\n");
+		}
+	}
+
+	private static String action(LoweredNode.Stmt s) {
+		if (s instanceof LoweredNode.Move)
+			return "robot.move()";
+		if (s instanceof LoweredNode.TurnL)
+			return "robot.turnLeft()";
+		if (s instanceof LoweredNode.TurnR)
+			return "robot.turnRight()";
+		if (s instanceof LoweredNode.TakeFuel)
+			return "robot.takeFuel()";
+		if (s instanceof LoweredNode.TurnAround)
+			return "robot.turnAround()";
+		if (s instanceof LoweredNode.ShieldOn)
+			return "robot.setShield(true)";
+		if (s instanceof LoweredNode.ShieldOff)
+			return "robot.setShield(false)";
+		return "robot.idleWait()";
+	}
+
+	private static void condition(LoweredNode.Cond c, StringBuilder out) {
+		if (c instanceof LoweredNode.Not) {
+			out.append("!");
+			condition(((LoweredNode.Not) c).a, out);
+		} else if (c instanceof LoweredNode.And) {
+			binary(((LoweredNode.And) c).a, " && ", ((LoweredNode.And) c).b, out);
+		} else if (c instanceof LoweredNode.Or) {
+			binary(((LoweredNode.Or) c).a, " || ", ((LoweredNode.Or) c).b, out);
+		} else if (c instanceof LoweredNode.Lt) {
+			binary(((LoweredNode.Lt) c).a, " < ", ((LoweredNode.Lt) c).b, out);
+		} else if (c instanceof LoweredNode.Gt) {
+			binary(((LoweredNode.Gt) c).a, " > ", ((LoweredNode.Gt) c).b, out);
+		} else {
+			binary(((LoweredNode.Eq) c).a, " == ", ((LoweredNode.Eq) c).b, out);
+		}
+	}
+
+	private static void binary(Object a, String op, Object b, StringBuilder out) {
+		out.append('(');
+		operand(a, out);
+		out.append(op);
+		operand(b, out);
+		out.append(')');
+	}
+
+	private static void operand(Object node, StringBuilder out) {
+		if (node instanceof LoweredNode.Cond) {
+			condition((LoweredNode.Cond) node, out);
+		} else {
+			expression((LoweredNode.Expr) node, out);
+		}
+	}
+
+	private static void expression(LoweredNode.Expr e, StringBuilder out) {
+		if (e instanceof LoweredNode.Const) {
+			out.append('(').append(((LoweredNode.Const) e).value).append(')');
+		} else if (e instanceof LoweredNode.Var) {
+			out.append("robot.getVariable(").append(((LoweredNode.Var) e).slot).append(')');
+		} else if (e instanceof LoweredNode.Add) {
+			binary(((LoweredNode.Add) e).a, " + ", ((LoweredNode.Add) e).b, out);
+		} else if (e instanceof LoweredNode.Sub) {
+			binary(((LoweredNode.Sub) e).a, " - ", ((LoweredNode.Sub) e).b, out);
+		} else if (e instanceof LoweredNode.Mul) {
+			binary(((LoweredNode.Mul) e).a, " * ", ((LoweredNode.Mul) e).b, out);
+		} else if (e instanceof LoweredNode.Div) {
+			binary(((LoweredNode.Div) e).a, " / ", ((LoweredNode.Div) e).b, out);
+		} else if (e instanceof LoweredNode.FuelLeft) {
+			out.append("robot.sensors().fuel()");
+		} else if (e instanceof LoweredNode.OppLR) {
+			out.append("robot.sensors().oppLR()");
+		} else if (e instanceof LoweredNode.OppFB) {
+			out.append("robot.sensors().oppFB()");
+		} else if (e instanceof LoweredNode.NumBarrels) {
+			out.append("robot.sensors().numBarrels()");
+		} else if (e instanceof LoweredNode.BarrelLR) {
+			out.append("robot.sensors().barrelLR()");
+		} else if (e instanceof LoweredNode.BarrelFB) {
+			out.append("robot.sensors().barrelFB()");
+		} else if (e instanceof LoweredNode.BarrelDist) {
+			out.append("robot.sensors().barrelDist()");
+		} else if (e instanceof LoweredNode.NthBarrel) {
+			LoweredNode.NthBarrel b = (LoweredNode.NthBarrel) e;
+			String part = (b.part == LoweredNode.NthBarrel.LR) ? "LR" : (b.part == LoweredNode.NthBarrel.FB) ? "FB" : "Dist";
+			out.append("robot.barrel").append(part).append('(');
+			expression(b.n, out);
+			out.append(')');
+		} else {
+			out.append("robot.sensors().wallDist()");
+		}
+	}
+
+	// =======================================================
+	// In memory compilation
+	// =======================================================
+
+	/**
+	 * Compiles the generated source, returning the class file bytes or null if
+	 * it doesn't compile.
+	 */
+	private static byte[] compileSource(String source) {
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + CLASS_NAME + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		StringWriter errors = new StringWriter();
+		List<String> options = List.of("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none");
+		// closing the output closes the standard file manager, and with it any jars it opened
+		try (ClassOutput output = new ClassOutput(javac.getStandardFileManager(null, null, null))) {
+			boolean ok = javac.getTask(errors, output, null, options, null, Collections.singletonList(file)).call();
+			if (!ok || output.bytes == null) {
+				System.out.println("Couldn't compile program to a class, using the VM instead");
+				System.out.println(errors);
+				return null;
+			}
+			return output.bytes.toByteArray();
+		} catch (IOException e) {
+			System.out.println("Couldn't compile program to a class, using the VM instead");
+			System.out.println(e.getMessage());
+			return null;
+		}
+	}
+
+	private static class ClassOutput extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+		ByteArrayOutputStream bytes;
+
+		ClassOutput(StandardJavaFileManager standard) {
+			super(standard);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create("bytes:///" + className + ".class"), kind) {
+				@Override
+				public OutputStream openOutputStream() {
+					bytes = new ByteArrayOutputStream();
+					return bytes;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * The ways a loaded program can be run. The engine is chosen with the
+ * robot.engine system property (tree, vm or jvm), and can be changed at runtime; it
+ * applies to programs loaded after the change.
+ */
+public enum ExecutionEngine {
+
+	/** walks the lowered node tree */
+	TREE {
+		@Override
+		RobotProgramNode prepare(RobotProgramNode lowered) {
+			return lowered;
+		}
+	},
+
+	/** compiles to bytecode and runs it on the register VM */
+	VM {
+		@Override
+		RobotProgramNode prepare(RobotProgramNode lowered) {
+			return Bytecode.compile(lowered);
+		}
+	},
+
+	/** compiles to a hidden JVM class, falling back to the VM if that isn't possible */
+	JVM {
+		@Override
+		RobotProgramNode prepare(RobotProgramNode lowered) {
+			return ClassCompiler.compile(lowered);
+		}
+	};
+
+	private static volatile ExecutionEngine current = fromName(System.getProperty("robot.engine"), TREE);
+
+	public static ExecutionEngine current() {
+		return current;
+	}
+
+	public static void setCurrent(ExecutionEngine engine) {
+		current = engine;
+	}
+
+	/**
+	 * Looks up an engine by (case insensitive) name, or returns the fallback.
+	 */
+	public static ExecutionEngine fromName(String name, ExecutionEngine fallback) {
+		if (name != null) {
+			for (ExecutionEngine e : values()) {
+				if (e.name().equalsIgnoreCase(name)) {
+					return e;
+				}
+			}
+		}
+		return fallback;
+	}
+
+	/**
+	 * Turns a lowered program into the form this engine runs.
+	 */
+	abstract RobotProgramNode prepare(RobotProgramNode lowered);
+}
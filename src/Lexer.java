@@ -0,0 +1,256 @@
+import java.util.Arrays;
+
+/**
+ * Single pass tokenizer for robot programs. The whole source is read once into
+ * a compact token stream: an int kind code per token plus its start and end
+ * offsets in the source (and the value, for numbers). Keywords, sensors,
+ * relops and ops are classified here so the parser only ever compares ints.
+ *
+ * Tokens are split the same way the old Scanner delimiter did: on whitespace,
+ * and either side of any of (){},;
+ */
+public class Lexer {
+
+	// token kinds
+	static final int EOF = 0, NUM = 1, VAR = 2, WORD = 3, EQUALS = 4,
+			OPENPAREN = 5, CLOSEPAREN = 6, OPENBRACE = 7, CLOSEBRACE = 8, COMMA = 9, SEMICOLON = 10,
+			LOOP = 11, WHILE = 12, IF = 13, ELIF = 14, ELSE = 15, AND = 16, OR = 17, NOT = 18;
+
+	// actions, in the same order as Parser.actions
+	static final int MOVE = 20, WAIT = 21, TURN_L = 22, TURN_R = 23, TAKE_FUEL = 24,
+			TURN_AROUND = 25, SHIELD_ON = 26, SHIELD_OFF = 27;
+
+	// sensors
+	static final int FUEL_LEFT = 30, OPP_LR = 31, OPP_FB = 32, NUM_BARRELS = 33,
+			BARREL_LR = 34, BARREL_FB = 35, WALL_DIST = 36, BARREL_DIST = 37;
+
+	// relops and ops
+	static final int LT = 40, GT = 41, EQ = 42;
+	static final int ADD = 50, SUB = 51, MUL = 52, DIV = 53;
+
+	private static final String[] KEYWORDS = {
+			"loop", "while", "if", "elif", "else", "and", "or", "not",
+			"move", "wait", "turnL", "turnR", "takeFuel", "turnAround", "shieldOn", "shieldOff",
+			"fuelLeft", "oppLR", "oppFB", "numBarrels", "barrelLR", "barrelFB", "wallDist", "barrelDist",
+			"lt", "gt", "eq", "add", "sub", "mul", "div" };
+	private static final int[] KEYWORD_KINDS = {
+			LOOP, WHILE, IF, ELIF, ELSE, AND, OR, NOT,
+			MOVE, WAIT, TURN_L, TURN_R, TAKE_FUEL, TURN_AROUND, SHIELD_ON, SHIELD_OFF,
+			FUEL_LEFT, OPP_LR, OPP_FB, NUM_BARRELS, BARREL_LR, BARREL_FB, WALL_DIST, BARREL_DIST,
+			LT, GT, EQ, ADD, SUB, MUL, DIV };
+
+	/** keyword indices bucketed by length, so classifying a word never allocates */
+	private static final int[][] BY_LENGTH = new int[16][];
+
+	static {
+		for (int i = 0; i < KEYWORDS.length; i++) {
+			int len = KEYWORDS[i].length();
+			int[] bucket = BY_LENGTH[len] == null ? new int[0] : BY_LENGTH[len];
+			bucket = Arrays.copyOf(bucket, bucket.length + 1);
+			bucket[bucket.length - 1] = i;
+			BY_LENGTH[len] = bucket;
+		}
+	}
+
+	static boolean isAction(int kind) {
+		return kind >= MOVE && kind <= SHIELD_OFF;
+	}
+
+	static boolean isSensor(int kind) {
+		return kind >= FUEL_LEFT && kind <= BARREL_DIST;
+	}
+
+	static boolean isRelop(int kind) {
+		return kind >= LT && kind <= EQ;
+	}
+
+	static boolean isOp(int kind) {
+		return kind >= ADD && kind <= DIV;
+	}
+
+	private final String src;
+	private int[] kinds, starts, ends, values, lines;
+	private int count;
+	private int line = 1;
+	private int pos;
+
+	public Lexer(String src) {
+		this.src = src;
+		int capacity = Math.max(16, src.length() / 3);
+		kinds = new int[capacity];
+		starts = new int[capacity];
+		ends = new int[capacity];
+		values = new int[capacity];
+		lines = new int[capacity];
+		tokenize();
+	}
+
+	private void tokenize() {
+		int n = src.length();
+		int i = 0;
+		while (i < n) {
+			char c = src.charAt(i);
+			if (Character.isWhitespace(c)) {
+				if (c == '\n') {
+					line++;
+				}
+				i++;
+				continue;
+			}
+			int kind = punctuation(c);
+			if (kind != EOF) {
+				add(kind, i, i + 1, 0);
+				i++;
+				continue;
+			}
+			int start = i;
+			while (i < n && !Character.isWhitespace(src.charAt(i)) && punctuation(src.charAt(i)) == EOF) {
+				i++;
+			}
+			classify(start, i);
+		}
+		add(EOF, n, n, 0);
+	}
+
+	private static int punctuation(char c) {
+		switch (c) {
+		case '(':
+			return OPENPAREN;
+		case ')':
+			return CLOSEPAREN;
+		case '{':
+			return OPENBRACE;
+		case '}':
+			return CLOSEBRACE;
+		case ',':
+			return COMMA;
+		case ';':
+			return SEMICOLON;
+		}
+		return EOF;
+	}
+
+	private void classify(int start, int end) {
+		int len = end - start;
+		char first = src.charAt(start);
+		if (first == '-' || (first >= '0' && first <= '9')) {
+			int i = (first == '-') ? start + 1 : start;
+			if (i < end) {
+				long value = 0;
+				while (i < end && src.charAt(i) >= '0' && src.charAt(i) <= '9') {
+					value = value * 10 + (src.charAt(i) - '0');
+					if (value > Integer.MAX_VALUE + 1L) {
+						break;
+					}
+					i++;
+				}
+				if (i == end) {
+					if (first == '-') {
+						value = -value;
+					}
+					if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+						add(NUM, start, end, (int) value);
+						return;
+					}
+				}
+			}
+		} else if (first == '$' && len > 1 && isLetter(src.charAt(start + 1))) {
+			int i = start + 2;
+			while (i < end && (isLetter(src.charAt(i)) || (src.charAt(i) >= '0' && src.charAt(i) <= '9'))) {
+				i++;
+			}
+			if (i == end) {
+				add(VAR, start, end, 0);
+				return;
+			}
+		} else if (first == '=' && len == 1) {
+			add(EQUALS, start, end, 0);
+			return;
+		} else if (len < BY_LENGTH.length && BY_LENGTH[len] != null) {
+			for (int k : BY_LENGTH[len]) {
+				if (src.regionMatches(start, KEYWORDS[k], 0, len)) {
+					add(KEYWORD_KINDS[k], start, end, 0);
+					return;
+				}
+			}
+		}
+		add(WORD, start, end, 0);
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+
+	private void add(int kind, int start, int end, int value) {
+		if (count == kinds.length) {
+			int capacity = count * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			values = Arrays.copyOf(values, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+		}
+		kinds[count] = kind;
+		starts[count] = start;
+		ends[count] = end;
+		values[count] = value;
+		lines[count] = line;
+		count++;
+	}
+
+	// =======================================================
+	// Cursor used by the parser
+	// =======================================================
+
+	/** Kind of the next token, EOF at the end of the input. */
+	int peek() {
+		return kinds[pos];
+	}
+
+	/** Kind of the token n places after the next one. */
+	int peek(int n) {
+		return kinds[Math.min(pos + n, count - 1)];
+	}
+
+	boolean hasNext() {
+		return kinds[pos] != EOF;
+	}
+
+	/** Consumes the next token and returns its index. */
+	int next() {
+		int index = pos;
+		if (pos < count - 1) {
+			pos++;
+		}
+		return index;
+	}
+
+	int kind(int token) {
+		return kinds[token];
+	}
+
+	int value(int token) {
+		return values[token];
+	}
+
+	int offset(int token) {
+		return starts[token];
+	}
+
+	/** Source line (from 1) of the next token. */
+	int line() {
+		return lines[pos];
+	}
+
+	String text(int token) {
+		return src.substring(starts[token], ends[token]);
+	}
+
+	String source() {
+		return src;
+	}
+
+	int size() {
+		return count - 1;
+	}
+}
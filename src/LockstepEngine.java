@@ -0,0 +1,274 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs a game without the GUI, the timer or any robot threads. Every robot's
+ * program is compiled to bytecode and run on one thread: each tick, each robot
+ * that is waiting for its next action is resumed until it has one, and then
+ * the world carries out the turn. Nothing sleeps, so a game runs as fast as
+ * the programs and the world can be stepped, and with the same seed a game
+ * always plays out the same way.
+ *
+ * Robots without a program run the default program, given here as source so
+ * it can be paused like any other.
+ */
+public class LockstepEngine {
+
+	/** Robot.defaultProgram, as a robot program */
+	static final String DEFAULT_PROGRAM = "while (gt(fuelLeft, 0)) {\n"
+			+ "\tif (eq(numBarrels, 0)) { wait; }\n"
+			+ "\telif (and(eq(barrelLR, 0), eq(barrelFB, 0))) { takeFuel; }\n"
+			+ "\telif (eq(barrelFB, 0)) {\n"
+			+ "\t\tif (lt(barrelLR, 0)) { turnL; } else { turnR; }\n"
+			+ "\t}\n"
+			+ "\telif (gt(barrelFB, 0)) { move; }\n"
+			+ "\telse { turnAround; }\n"
+			+ "}\n";
+
+	private static Bytecode defaultProgram;
+
+	private final World world;
+	private final Robot[] robots;
+	private final Bytecode.Runner[] runners;
+	private final boolean[] running;
+	/** the turn each robot ran out of fuel, 0 while it has some */
+	private final int[] died;
+	private int ticks;
+
+	/**
+	 * Sets up a two robot game (or one robot per program, if there are more)
+	 * in a new world with the given seed.
+	 */
+	public LockstepEngine(long seed, RobotProgramNode... programs) {
+		this(seed, Math.max(2, programs.length), programs);
+	}
+
+	/**
+	 * Sets up a game with n robots in a new world with the given seed. Each
+	 * program is given to the robot with the same number (from 1), a null
+	 * program (or one missing off the end) means the default program.
+	 */
+	public LockstepEngine(long seed, int n, RobotProgramNode... programs) {
+		this(new World(seed, n), programs);
+	}
+
+	/**
+	 * Sets up a game in a world that hasn't been started, for when it needs
+	 * more setting up than a seed and a robot count.
+	 */
+	LockstepEngine(World world, RobotProgramNode... programs) {
+		int n = world.robotCount();
+		this.world = world;
+		robots = new Robot[n];
+		runners = new Bytecode.Runner[n];
+		running = new boolean[n];
+		died = new int[n];
+		for (int i = 0; i < n; i++) {
+			RobotProgramNode prog = (i < programs.length) ? programs[i] : null;
+			Bytecode code = compile(prog);
+			robots[i] = world.getRobot(i + 1);
+			robots[i].setLockstep(true);
+			robots[i].setProgram(code);
+			runners[i] = new Bytecode.Runner(code);
+			running[i] = true;
+		}
+	}
+
+	/**
+	 * Compiles a program the way a game would, so a program that's played many
+	 * times can be compiled once; the bytecode is read only and can be shared
+	 * by games on different threads.
+	 */
+	static Bytecode compile(RobotProgramNode prog) {
+		if (prog instanceof StatementNode.programNode) {
+			prog = Lowering.lower(Optimizer.optimize(prog));
+		}
+		if (prog instanceof LoweredNode.Program) {
+			return (Bytecode) Bytecode.compile(prog);
+		}
+		if (prog instanceof Bytecode) {
+			return (Bytecode) prog;
+		}
+		return defaultProgram();
+	}
+
+	private static synchronized Bytecode defaultProgram() {
+		if (defaultProgram == null) {
+			defaultProgram = (Bytecode) Bytecode.compile(Lowering.lower(Optimizer.optimize(Parser.parseSource(DEFAULT_PROGRAM))));
+		}
+		return defaultProgram;
+	}
+
+	/**
+	 * Plays the game until at most one robot has fuel left (or none, with only
+	 * one robot), or for maxTicks turns.
+	 */
+	public Result run(int maxTicks) {
+		world.addInitialFuel();
+		long start = System.nanoTime();
+		while (ticks < maxTicks && !over()) {
+			tick();
+		}
+		return new Result(ticks, System.nanoTime() - start, winner(), robots, died);
+	}
+
+	/** Whether at most one robot has fuel left (or none, with only one robot) */
+	boolean over() {
+		return alive() <= (robots.length > 1 ? 1 : 0);
+	}
+
+	/** Plays one turn */
+	void tick() {
+		for (int i = 0; i < robots.length; i++) {
+			step(i);
+		}
+		world.updateWorld();
+		ticks++;
+		for (int i = 0; i < robots.length; i++) {
+			if (died[i] == 0 && robots[i].isDead()) {
+				died[i] = ticks;
+			}
+		}
+	}
+
+	/** Runs robot i's program up to its next action, unless it already has one waiting */
+	private void step(int i) {
+		Robot robot = robots[i];
+		if (!running[i] || robot.actionPending()) {
+			return;
+		}
+		boolean more;
+		try {
+			more = runners[i].resume(robot);
+		} catch (RobotInterruptedException e) {
+			more = false;
+		}
+		if (!more) {
+			running[i] = false;
+			robot.setFinished(true);
+		}
+	}
+
+	private int alive() {
+		int alive = 0;
+		for (Robot robot : robots) {
+			if (!robot.isDead()) {
+				alive++;
+			}
+		}
+		return alive;
+	}
+
+	/** The robot with the most fuel (1 based), or 0 for a draw */
+	private int winner() {
+		int best = 0, bestFuel = 0;
+		boolean tied = false;
+		for (int i = 0; i < robots.length; i++) {
+			int fuel = robots[i].isDead() ? 0 : robots[i].sensors().fuel();
+			if (fuel > bestFuel) {
+				best = i + 1;
+				bestFuel = fuel;
+				tied = false;
+			} else if (fuel == bestFuel) {
+				tied = true;
+			}
+		}
+		return tied ? 0 : best;
+	}
+
+	/**
+	 * How a game ended.
+	 */
+	public static class Result {
+
+		public final int ticks;
+		public final long nanos;
+		/** the winning robot (1 based), 0 for a draw */
+		public final int winner;
+		private final String[] states;
+		private final int[] survived, fuel, fuelTaken;
+
+		Result(int ticks, long nanos, int winner, Robot[] robots, int[] died) {
+			this.ticks = ticks;
+			this.nanos = nanos;
+			this.winner = winner;
+			this.states = new String[robots.length];
+			survived = new int[robots.length];
+			fuel = new int[robots.length];
+			fuelTaken = new int[robots.length];
+			for (int i = 0; i < robots.length; i++) {
+				states[i] = robots[i].state();
+				survived[i] = (died[i] == 0) ? ticks : died[i];
+				fuel[i] = robots[i].isDead() ? 0 : robots[i].sensors().fuel();
+				fuelTaken[i] = robots[i].fuelTaken();
+			}
+		}
+
+		/** Turns robot n (1 based) had fuel for */
+		public int survived(int n) {
+			return survived[n - 1];
+		}
+
+		/** Fuel robot n (1 based) had left at the end */
+		public int fuel(int n) {
+			return fuel[n - 1];
+		}
+
+		/** Fuel robot n (1 based) gained from barrels and other robots */
+		public int fuelTaken(int n) {
+			return fuelTaken[n - 1];
+		}
+
+		public double ticksPerSecond() {
+			return (nanos == 0) ? 0 : ticks * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder out = new StringBuilder();
+			out.append(ticks).append(" ticks in ").append(nanos / 1000000).append("ms (")
+					.append(Math.round(ticksPerSecond())).append(" ticks/s)\n");
+			out.append(winner == 0 ? "Draw" : "Robot " + winner + " wins").append('\n');
+			for (int i = 0; i < states.length; i++) {
+				out.append("Robot ").append(i + 1).append(": ").append(states[i]).append('\n');
+			}
+			return out.toString();
+		}
+	}
+
+	/**
+	 * Plays one game: LockstepEngine seed maxTicks [robots] [program1 program2 ...]
+	 *
+	 * The game is saved as a replay if the robot.replay property names a file.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: LockstepEngine seed maxTicks [robots] [program1 program2 ...]");
+			return;
+		}
+		long seed = Long.parseLong(args[0]);
+		int maxTicks = Integer.parseInt(args[1]);
+		int first = 2;
+		int n = 0;
+		if (args.length > 2 && args[2].matches("\\d+")) {
+			n = Integer.parseInt(args[2]);
+			first = 3;
+		}
+		RobotProgramNode[] programs = new RobotProgramNode[args.length - first];
+		for (int i = first; i < args.length; i++) {
+			programs[i - first] = ProgramCache.shared().load(new File(args[i]));
+		}
+		n = Math.max(n, Math.max(2, programs.length));
+		World world = new World(seed, n);
+		String replay = System.getProperty("robot.replay");
+		if (replay != null) {
+			try {
+				world.recordTo(new ReplayRecorder(new File(replay), world));
+			} catch (IOException e) {
+				System.out.println("Couldn't save the replay: " + e.getMessage());
+			}
+		}
+		System.out.print(new LockstepEngine(world, programs).run(maxTicks));
+		world.stopRecording();
+	}
+}
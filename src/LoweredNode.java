@@ -0,0 +1,502 @@
+/**
+ * The typed program tree that is actually executed. Lowering turns the
+ * StatementNode tree the parser builds into these: one final class per
+ * action, sensor, relop and op, constants as primitive ints, and no nullable
+ * fields to dispatch on, so every call site stays small and monomorphic.
+ */
+public class LoweredNode {
+
+	abstract static class Stmt implements RobotProgramNode {
+	}
+
+	abstract static class Cond implements RobotConditionalNode {
+	}
+
+	abstract static class Expr implements RobotIntegerNode {
+	}
+
+	/**
+	 * ============= PROGRAM AND CONTROL FLOW ===============
+	 */
+	static final class Program implements RobotProgramNode {
+
+		final Stmt[] body;
+		final int frameSize;
+		final int sensorMask;
+		final int barrelDepth;
+		/** the source of the tree this was lowered from, for printing */
+		final String source;
+
+		Program(Stmt[] body, int frameSize, int sensorMask, int barrelDepth, String source) {
+			this.body = body;
+			this.frameSize = frameSize;
+			this.sensorMask = sensorMask;
+			this.barrelDepth = barrelDepth;
+			this.source = source;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			for (Stmt s : body) {
+				s.execute(robot);
+			}
+		}
+
+		@Override
+		public int frameSize() {
+			return frameSize;
+		}
+
+		@Override
+		public int sensorMask() {
+			return sensorMask;
+		}
+
+		@Override
+		public int barrelDepth() {
+			return barrelDepth;
+		}
+
+		@Override
+		public String toString() {
+			return source;
+		}
+	}
+
+	static final class Block extends Stmt {
+
+		final Stmt[] body;
+
+		Block(Stmt[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			for (Stmt s : body) {
+				s.execute(robot);
+			}
+		}
+	}
+
+	static final class Loop extends Stmt {
+
+		final Stmt body;
+
+		Loop(Stmt body) {
+			this.body = body;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			while (!robot.isDead()) {
+				robot.chargeInstruction();
+				body.execute(robot);
+			}
+		}
+	}
+
+	static final class While extends Stmt {
+
+		final Cond cond;
+		final Stmt body;
+
+		While(Cond cond, Stmt body) {
+			this.cond = cond;
+			this.body = body;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			while (cond.evaluate(robot)) {
+				robot.chargeInstruction();
+				body.execute(robot);
+			}
+		}
+	}
+
+	/** An if, with any elif chain lowered to nested Ifs in the else branch. */
+	static final class If extends Stmt {
+
+		final Cond cond;
+		final Stmt then;
+		final Stmt otherwise; // may be null
+
+		If(Cond cond, Stmt then, Stmt otherwise) {
+			this.cond = cond;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			if (cond.evaluate(robot)) {
+				then.execute(robot);
+			} else if (otherwise != null) {
+				otherwise.execute(robot);
+			}
+		}
+	}
+
+	static final class Assign extends Stmt {
+
+		final int slot;
+		final Expr value;
+
+		Assign(int slot, Expr value) {
+			this.slot = slot;
+			this.value = value;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			robot.setVariable(slot, value.evaluate(robot));
+		}
+	}
+
+	/**
+	 * ================= ACTIONS =================
+	 */
+	static final class Move extends Stmt {
+
+		final Expr steps; // may be null
+
+		Move(Expr steps) {
+			this.steps = steps;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			robot.move(steps == null ? 1 : steps.evaluate(robot));
+		}
+	}
+
+	static final class Wait extends Stmt {
+
+		final Expr turns; // may be null
+
+		Wait(Expr turns) {
+			this.turns = turns;
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			robot.idleWait(turns == null ? 1 : turns.evaluate(robot));
+		}
+	}
+
+	static final class TurnL extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.turnLeft();
+		}
+	}
+
+	static final class TurnR extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.turnRight();
+		}
+	}
+
+	static final class TakeFuel extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.takeFuel();
+		}
+	}
+
+	static final class TurnAround extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.turnAround();
+		}
+	}
+
+	static final class ShieldOn extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.setShield(true);
+		}
+	}
+
+	static final class ShieldOff extends Stmt {
+		@Override
+		public void execute(Robot robot) {
+			robot.setShield(false);
+		}
+	}
+
+	/**
+	 * ================= CONDITIONS =================
+	 */
+	static final class Lt extends Cond {
+
+		final Expr a, b;
+
+		Lt(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return a.evaluate(robot) < b.evaluate(robot);
+		}
+	}
+
+	static final class Gt extends Cond {
+
+		final Expr a, b;
+
+		Gt(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return a.evaluate(robot) > b.evaluate(robot);
+		}
+	}
+
+	static final class Eq extends Cond {
+
+		final Expr a, b;
+
+		Eq(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return a.evaluate(robot) == b.evaluate(robot);
+		}
+	}
+
+	static final class And extends Cond {
+
+		final Cond a, b;
+
+		And(Cond a, Cond b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return a.evaluate(robot) && b.evaluate(robot);
+		}
+	}
+
+	static final class Or extends Cond {
+
+		final Cond a, b;
+
+		Or(Cond a, Cond b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return a.evaluate(robot) || b.evaluate(robot);
+		}
+	}
+
+	static final class Not extends Cond {
+
+		final Cond a;
+
+		Not(Cond a) {
+			this.a = a;
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			return !a.evaluate(robot);
+		}
+	}
+
+	/**
+	 * ================= EXPRESSIONS =================
+	 */
+	static final class Const extends Expr {
+
+		final int value;
+
+		Const(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return value;
+		}
+	}
+
+	static final class Var extends Expr {
+
+		final int slot;
+
+		Var(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.getVariable(slot);
+		}
+	}
+
+	static final class Add extends Expr {
+
+		final Expr a, b;
+
+		Add(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return a.evaluate(robot) + b.evaluate(robot);
+		}
+	}
+
+	static final class Sub extends Expr {
+
+		final Expr a, b;
+
+		Sub(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return a.evaluate(robot) - b.evaluate(robot);
+		}
+	}
+
+	static final class Mul extends Expr {
+
+		final Expr a, b;
+
+		Mul(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return a.evaluate(robot) * b.evaluate(robot);
+		}
+	}
+
+	static final class Div extends Expr {
+
+		final Expr a, b;
+
+		Div(Expr a, Expr b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			return a.evaluate(robot) / b.evaluate(robot);
+		}
+	}
+
+	/**
+	 * ================= SENSORS =================
+	 * Read from the robot's snapshot for the current turn.
+	 */
+	static final class FuelLeft extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().fuel();
+		}
+	}
+
+	static final class OppLR extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().oppLR();
+		}
+	}
+
+	static final class OppFB extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().oppFB();
+		}
+	}
+
+	static final class NumBarrels extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().numBarrels();
+		}
+	}
+
+	static final class BarrelLR extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().barrelLR();
+		}
+	}
+
+	static final class BarrelFB extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().barrelFB();
+		}
+	}
+
+	static final class BarrelDist extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().barrelDist();
+		}
+	}
+
+	/**
+	 * barrelLR(n), barrelFB(n) or barrelDist(n), for any barrel but the
+	 * closest. These aren't in the snapshot, the robot finds them.
+	 */
+	static final class NthBarrel extends Expr {
+
+		static final int LR = 0, FB = 1, DIST = 2;
+
+		final int part;
+		final Expr n;
+
+		NthBarrel(int part, Expr n) {
+			this.part = part;
+			this.n = n;
+		}
+
+		@Override
+		public int evaluate(Robot robot) {
+			int index = n.evaluate(robot);
+			switch (part) {
+			case LR:
+				return robot.barrelLR(index);
+			case FB:
+				return robot.barrelFB(index);
+			default:
+				return robot.barrelDist(index);
+			}
+		}
+	}
+
+	static final class WallDist extends Expr {
+		@Override
+		public int evaluate(Robot robot) {
+			return robot.sensors().wallDist();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+import java.util.List;
+
+/**
+ * Turns the StatementNode tree built by the parser into the typed LoweredNode
+ * tree. All the string comparisons and null checks the StatementNode classes
+ * do on every execution are done once, here.
+ */
+public class Lowering {
+
+	/**
+	 * Lowers a parsed program. Anything that isn't a parsed program (or is
+	 * already lowered) is returned unchanged.
+	 */
+	public static RobotProgramNode lower(RobotProgramNode prog) {
+		if (!(prog instanceof StatementNode.programNode)) {
+			return prog;
+		}
+		StatementNode.programNode p = (StatementNode.programNode) prog;
+		LoweredNode.Stmt[] body = lowerAll(p.program);
+		SensorUse use = new SensorUse();
+		for (LoweredNode.Stmt s : body) {
+			use.statement(s);
+		}
+		return new LoweredNode.Program(body, p.frameSize, use.mask, use.barrelDepth(), p.toString());
+	}
+
+	private static LoweredNode.Stmt[] lowerAll(List<StatementNode> statements) {
+		LoweredNode.Stmt[] lowered = new LoweredNode.Stmt[statements.size()];
+		for (int i = 0; i < lowered.length; i++) {
+			lowered[i] = lowerStatement(statements.get(i));
+		}
+		return lowered;
+	}
+
+	/** A block of one statement lowers to just that statement. */
+	private static LoweredNode.Stmt lowerBlock(StatementNode.blockNode block) {
+		if (block.statements.size() == 1) {
+			return lowerStatement(block.statements.get(0));
+		}
+		return new LoweredNode.Block(lowerAll(block.statements));
+	}
+
+	private static LoweredNode.Stmt lowerStatement(StatementNode s) {
+		if (s.loopNode != null) {
+			return new LoweredNode.Loop(lowerBlock(s.loopNode.block));
+		} else if (s.actionNode != null) {
+			return lowerAction(s.actionNode);
+		} else if (s.whileNode != null) {
+			return new LoweredNode.While(lowerCond(s.whileNode.endCondition), lowerBlock(s.whileNode.block));
+		} else if (s.ifNode != null) {
+			return lowerIf(s.ifNode);
+		} else if (s.assignNode != null) {
+			return new LoweredNode.Assign(s.assignNode.var.slot, lowerArg(s.assignNode.value));
+		}
+		return new LoweredNode.Block(new LoweredNode.Stmt[0]);
+	}
+
+	private static LoweredNode.Stmt lowerIf(StatementNode.ifNode n) {
+		LoweredNode.Stmt otherwise = null;
+		if (n.elif != null && !n.elif.isEmpty()) {
+			// the parser nests each further elif (and the else) inside the first
+			otherwise = lowerIf(n.elif.get(0));
+		} else if (n.elseNode != null) {
+			otherwise = lowerBlock(n.elseNode.blockNode);
+		}
+		return new LoweredNode.If(lowerCond(n.condition), lowerBlock(n.blockNode), otherwise);
+	}
+
+	private static LoweredNode.Stmt lowerAction(StatementNode.actionNode n) {
+		LoweredNode.Expr args = (n.args == null) ? null : lowerArg(n.args);
+		switch (n.action) {
+		case "move":
+			return new LoweredNode.Move(args);
+		case "turnR":
+			return new LoweredNode.TurnR();
+		case "turnL":
+			return new LoweredNode.TurnL();
+		case "takeFuel":
+			return new LoweredNode.TakeFuel();
+		case "turnAround":
+			return new LoweredNode.TurnAround();
+		case "shieldOn":
+			return new LoweredNode.ShieldOn();
+		case "shieldOff":
+			return new LoweredNode.ShieldOff();
+		default:
+			return new LoweredNode.Wait(args);
+		}
+	}
+
+	private static LoweredNode.Cond lowerCond(StatementNode.condNode n) {
+		if (n.relopNode != null) {
+			return lowerRelop(n.relopNode);
+		}
+		switch (n.operation) {
+		case "and":
+			return new LoweredNode.And(lowerCond(n.cond1), lowerCond(n.cond2));
+		case "or":
+			return new LoweredNode.Or(lowerCond(n.cond1), lowerCond(n.cond2));
+		default:
+			return new LoweredNode.Not(lowerCond(n.cond1));
+		}
+	}
+
+	private static LoweredNode.Cond lowerRelop(StatementNode.relopNode n) {
+		LoweredNode.Expr a = lowerArg(n.arg1);
+		LoweredNode.Expr b = lowerArg(n.arg2);
+		switch (n.relop) {
+		case "lt":
+			return new LoweredNode.Lt(a, b);
+		case "gt":
+			return new LoweredNode.Gt(a, b);
+		default:
+			return new LoweredNode.Eq(a, b);
+		}
+	}
+
+	private static LoweredNode.Expr lowerArg(StatementNode.argumentNode n) {
+		if (n.integer != null) {
+			return new LoweredNode.Const(n.integer);
+		} else if (n.sensor != null) {
+			return lowerSensor(n.sensor);
+		} else if (n.var != null) {
+			return new LoweredNode.Var(n.var.slot);
+		}
+		return lowerOp(n.opNode);
+	}
+
+	private static LoweredNode.Expr lowerOp(StatementNode.opNode n) {
+		LoweredNode.Expr a = lowerArg(n.argNode1);
+		LoweredNode.Expr b = lowerArg(n.argNode2);
+		switch (n.type) {
+		case "add":
+			return new LoweredNode.Add(a, b);
+		case "sub":
+			return new LoweredNode.Sub(a, b);
+		case "mul":
+			return new LoweredNode.Mul(a, b);
+		default:
+			return new LoweredNode.Div(a, b);
+		}
+	}
+
+	// =======================================================
+	// Sensor dependencies
+	// =======================================================
+
+	/**
+	 * What a program's sensors read: the SensorSnapshot groups, and how many
+	 * of the nearest barrels (when it only ever asks for constant ones).
+	 */
+	private static final class SensorUse {
+
+		/** the most barrels found up front each turn, any further ones are found as they're read */
+		static final int MAX_BARREL_DEPTH = 64;
+
+		int mask;
+		int barrels;
+		/** set when a barrel sensor's index isn't constant */
+		boolean anyBarrel;
+
+		/** Barrels read through a variable index are found as they're asked for, so only the closest is found up front */
+		int barrelDepth() {
+			return anyBarrel ? Math.max(1, barrels) : barrels;
+		}
+
+		void statement(LoweredNode.Stmt s) {
+			if (s instanceof LoweredNode.Block) {
+				for (LoweredNode.Stmt inner : ((LoweredNode.Block) s).body) {
+					statement(inner);
+				}
+			} else if (s instanceof LoweredNode.Loop) {
+				statement(((LoweredNode.Loop) s).body);
+			} else if (s instanceof LoweredNode.While) {
+				condition(((LoweredNode.While) s).cond);
+				statement(((LoweredNode.While) s).body);
+			} else if (s instanceof LoweredNode.If) {
+				LoweredNode.If i = (LoweredNode.If) s;
+				condition(i.cond);
+				statement(i.then);
+				if (i.otherwise != null) {
+					statement(i.otherwise);
+				}
+			} else if (s instanceof LoweredNode.Assign) {
+				expression(((LoweredNode.Assign) s).value);
+			} else if (s instanceof LoweredNode.Move) {
+				expression(((LoweredNode.Move) s).steps);
+			} else if (s instanceof LoweredNode.Wait) {
+				expression(((LoweredNode.Wait) s).turns);
+			}
+		}
+
+		void condition(LoweredNode.Cond c) {
+			if (c instanceof LoweredNode.Not) {
+				condition(((LoweredNode.Not) c).a);
+			} else if (c instanceof LoweredNode.And) {
+				condition(((LoweredNode.And) c).a);
+				condition(((LoweredNode.And) c).b);
+			} else if (c instanceof LoweredNode.Or) {
+				condition(((LoweredNode.Or) c).a);
+				condition(((LoweredNode.Or) c).b);
+			} else if (c instanceof LoweredNode.Lt) {
+				expression(((LoweredNode.Lt) c).a);
+				expression(((LoweredNode.Lt) c).b);
+			} else if (c instanceof LoweredNode.Gt) {
+				expression(((LoweredNode.Gt) c).a);
+				expression(((LoweredNode.Gt) c).b);
+			} else {
+				expression(((LoweredNode.Eq) c).a);
+				expression(((LoweredNode.Eq) c).b);
+			}
+		}
+
+		void expression(LoweredNode.Expr e) {
+			if (e instanceof LoweredNode.Add) {
+				expression(((LoweredNode.Add) e).a);
+				expression(((LoweredNode.Add) e).b);
+			} else if (e instanceof LoweredNode.Sub) {
+				expression(((LoweredNode.Sub) e).a);
+				expression(((LoweredNode.Sub) e).b);
+			} else if (e instanceof LoweredNode.Mul) {
+				expression(((LoweredNode.Mul) e).a);
+				expression(((LoweredNode.Mul) e).b);
+			} else if (e instanceof LoweredNode.Div) {
+				expression(((LoweredNode.Div) e).a);
+				expression(((LoweredNode.Div) e).b);
+			} else if (e instanceof LoweredNode.OppLR || e instanceof LoweredNode.OppFB) {
+				mask |= SensorSnapshot.OPPONENT;
+			} else if (e instanceof LoweredNode.NumBarrels) {
+				mask |= SensorSnapshot.BARREL_COUNT;
+			} else if (e instanceof LoweredNode.BarrelLR || e instanceof LoweredNode.BarrelFB
+					|| e instanceof LoweredNode.BarrelDist) {
+				mask |= SensorSnapshot.BARREL_POSITIONS;
+				barrels = Math.max(barrels, 1);
+			} else if (e instanceof LoweredNode.NthBarrel) {
+				LoweredNode.Expr n = ((LoweredNode.NthBarrel) e).n;
+				// finding barrels past the closest needs the count
+				mask |= SensorSnapshot.BARREL_POSITIONS | SensorSnapshot.BARREL_COUNT;
+				if (n instanceof LoweredNode.Const && ((LoweredNode.Const) n).value < MAX_BARREL_DEPTH) {
+					barrels = Math.max(barrels, ((LoweredNode.Const) n).value + 1);
+				} else {
+					anyBarrel = true;
+					expression(n);
+				}
+			}
+			// constants, variables, fuel, wall distance, or no argument read nothing
+		}
+	}
+
+	private static LoweredNode.Expr lowerSensor(StatementNode.senNode n) {
+		switch (n.sensor) {
+		case "fuelLeft":
+			return new LoweredNode.FuelLeft();
+		case "oppLR":
+			return new LoweredNode.OppLR();
+		case "oppFB":
+			return new LoweredNode.OppFB();
+		case "numBarrels":
+			return new LoweredNode.NumBarrels();
+		case "barrelLR":
+			return barrel(n, LoweredNode.NthBarrel.LR);
+		case "barrelFB":
+			return barrel(n, LoweredNode.NthBarrel.FB);
+		case "barrelDist":
+			return barrel(n, LoweredNode.NthBarrel.DIST);
+		default:
+			return new LoweredNode.WallDist();
+		}
+	}
+
+	/** The closest barrel is in the snapshot, any other is looked up */
+	private static LoweredNode.Expr barrel(StatementNode.senNode n, int part) {
+		LoweredNode.Expr index = (n.index == null) ? null : lowerArg(n.index);
+		if (index == null || (index instanceof LoweredNode.Const && ((LoweredNode.Const) index).value == 0)) {
+			switch (part) {
+			case LoweredNode.NthBarrel.LR:
+				return new LoweredNode.BarrelLR();
+			case LoweredNode.NthBarrel.FB:
+				return new LoweredNode.BarrelFB();
+			default:
+				return new LoweredNode.BarrelDist();
+			}
+		}
+		return new LoweredNode.NthBarrel(part, index);
+	}
+}
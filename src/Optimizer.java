@@ -0,0 +1,382 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Simplifies a parsed program without changing what it does: folds constant
+ * ops and relops, removes double negation and and/or with a constant operand,
+ * drops if/elif/while branches whose condition is constant, and merges an if
+ * whose block is just another if into one condition.
+ *
+ * The result still prints as a program that parses: an if left with nothing
+ * to do is dropped (or negated, if only its else is left), and a loop or while
+ * whose body was all dropped waits instead, which is what spinning on its
+ * condition came to anyway, as nothing it reads changes within a turn.
+ *
+ * Division is only folded when the divisor is a non-zero constant, so a
+ * division by zero still throws when (and only when) it's evaluated. Parts of a
+ * condition are only dropped without being evaluated if evaluating them can't
+ * throw.
+ */
+public class Optimizer {
+
+	private int removed;
+
+	/**
+	 * Returns an optimized copy of a parsed program, anything else is returned
+	 * unchanged.
+	 */
+	public static RobotProgramNode optimize(RobotProgramNode prog) {
+		return new Optimizer().run(prog);
+	}
+
+	/** The number of nodes removed by the last run */
+	public int removed() {
+		return removed;
+	}
+
+	public RobotProgramNode run(RobotProgramNode prog) {
+		if (!(prog instanceof StatementNode.programNode)) {
+			return prog;
+		}
+		StatementNode.programNode p = (StatementNode.programNode) prog;
+		StatementNode.programNode optimized = new StatementNode.programNode(statements(p.program), p.frameSize);
+		removed = count(p) - count(optimized);
+		return optimized;
+	}
+
+	// =======================================================
+	// Statements
+	// =======================================================
+
+	/** Optimizes a list of statements, splicing in any statements that replace a removed if */
+	private List<StatementNode> statements(List<StatementNode> in) {
+		List<StatementNode> out = new ArrayList<>(in.size());
+		for (StatementNode s : in) {
+			out.addAll(statement(s));
+		}
+		return out;
+	}
+
+	private List<StatementNode> statement(StatementNode s) {
+		if (s.loopNode != null) {
+			return wrap(new StatementNode.loopNode(body(s.loopNode.block)));
+		} else if (s.whileNode != null) {
+			StatementNode.condNode cond = cond(s.whileNode.endCondition);
+			if (isFalse(cond)) {
+				return Collections.emptyList();
+			}
+			return wrap(new StatementNode.whileNode(body(s.whileNode.block), cond));
+		} else if (s.ifNode != null) {
+			return ifStatement(s.ifNode);
+		} else if (s.actionNode != null) {
+			StatementNode.argumentNode args = s.actionNode.args == null ? null : arg(s.actionNode.args);
+			return Collections.singletonList(new StatementNode(null, new StatementNode.actionNode(s.actionNode.action, args), null, null, null));
+		} else if (s.assignNode != null) {
+			StatementNode.assignNode a = s.assignNode;
+			return Collections.singletonList(new StatementNode(null, null, null, null, new StatementNode.assignNode(a.var, arg(a.value))));
+		}
+		return Collections.singletonList(s);
+	}
+
+	/**
+	 * Optimizes an if (with its elif chain and else), returning the statements
+	 * that replace it: the if itself, the body of the branch that is always
+	 * taken, or nothing.
+	 */
+	private List<StatementNode> ifStatement(StatementNode.ifNode n) {
+		StatementNode.condNode cond = cond(n.condition);
+		if (isTrue(cond)) {
+			return statements(n.blockNode.statements);
+		}
+		List<StatementNode> otherwise = Collections.emptyList();
+		if (n.elif != null && !n.elif.isEmpty()) {
+			otherwise = ifStatement(n.elif.get(0));
+		} else if (n.elseNode != null) {
+			otherwise = statements(n.elseNode.blockNode.statements);
+		}
+		if (isFalse(cond)) {
+			return otherwise;
+		}
+		StatementNode.blockNode block = block(n.blockNode);
+		if (block.statements.isEmpty()) {
+			if (otherwise.isEmpty()) {
+				if (canDrop(cond)) {
+					return Collections.emptyList();
+				}
+				// the condition has to be evaluated, so keep the block as it was
+				block = n.blockNode;
+			} else {
+				// if(a){} else{...} is if(not(a)){...}
+				cond = not(cond);
+				block = new StatementNode.blockNode(otherwise);
+				otherwise = Collections.emptyList();
+			}
+		}
+
+		// if(a){ if(b){...} } with no elifs or elses is if(and(a, b)){...}
+		if (otherwise.isEmpty() && block.statements.size() == 1) {
+			StatementNode.ifNode inner = block.statements.get(0).ifNode;
+			if (inner != null && inner.elseNode == null && inner.elif.isEmpty()) {
+				cond = new StatementNode.condNode(null, "and", cond, inner.condition);
+				block = inner.blockNode;
+			}
+		}
+
+		List<StatementNode.ifNode> elif = new ArrayList<>();
+		StatementNode.elseNode elseNode = null;
+		if (otherwise.size() == 1 && otherwise.get(0).ifNode != null) {
+			elif.add(otherwise.get(0).ifNode);
+		} else if (!otherwise.isEmpty()) {
+			elseNode = new StatementNode.elseNode(new StatementNode.blockNode(otherwise));
+		}
+		return wrap(new StatementNode.ifNode(cond, block, elseNode, elif));
+	}
+
+	private StatementNode.blockNode block(StatementNode.blockNode b) {
+		return new StatementNode.blockNode(statements(b.statements));
+	}
+
+	/** Optimizes the body of a loop or while, which waits if nothing is left of it */
+	private StatementNode.blockNode body(StatementNode.blockNode b) {
+		StatementNode.blockNode block = block(b);
+		if (block.statements.isEmpty()) {
+			StatementNode wait = new StatementNode(null, new StatementNode.actionNode("wait", null), null, null, null);
+			return new StatementNode.blockNode(Collections.singletonList(wait));
+		}
+		return block;
+	}
+
+	private static List<StatementNode> wrap(StatementNode.loopNode n) {
+		return Collections.singletonList(new StatementNode(n, null, null, null, null));
+	}
+
+	private static List<StatementNode> wrap(StatementNode.whileNode n) {
+		return Collections.singletonList(new StatementNode(null, null, n, null, null));
+	}
+
+	private static List<StatementNode> wrap(StatementNode.ifNode n) {
+		return Collections.singletonList(new StatementNode(null, null, null, n, null));
+	}
+
+	// =======================================================
+	// Conditions
+	// =======================================================
+
+	/**
+	 * Optimizes a condition. A constant condition is returned as a new
+	 * comparison of two numbers, which no other condition is once it's been
+	 * optimized, so isTrue and isFalse can tell it apart.
+	 */
+	private StatementNode.condNode cond(StatementNode.condNode n) {
+		if (n.relopNode != null) {
+			StatementNode.argumentNode a = arg(n.relopNode.arg1);
+			StatementNode.argumentNode b = arg(n.relopNode.arg2);
+			StatementNode.condNode relop = new StatementNode.condNode(new StatementNode.relopNode(n.relopNode.relop, a, b), null, null, null);
+			Boolean value = value(relop);
+			return (value == null) ? relop : constant(value);
+		}
+		StatementNode.condNode a = cond(n.cond1);
+		if (n.operation.equals("not")) {
+			return not(a);
+		}
+		StatementNode.condNode b = cond(n.cond2);
+		// the operand that decides the result on its own: false for and, true for or
+		boolean decides = !n.operation.equals("and");
+		if (isConstant(a, decides)) {
+			return a; // b is never evaluated
+		}
+		if (isConstant(a, !decides)) {
+			return b;
+		}
+		if (isConstant(b, !decides)) {
+			return a;
+		}
+		if (isConstant(b, decides) && canDrop(a)) {
+			return b;
+		}
+		return new StatementNode.condNode(null, n.operation, a, b);
+	}
+
+	/** The negation of an optimized condition */
+	private static StatementNode.condNode not(StatementNode.condNode a) {
+		Boolean value = value(a);
+		if (value != null) {
+			return constant(!value);
+		}
+		if (a.operation != null && a.operation.equals("not")) {
+			return a.cond1;
+		}
+		return new StatementNode.condNode(null, "not", a, null);
+	}
+
+	/** The value of a condition that compares two numbers, null for any other condition */
+	private static Boolean value(StatementNode.condNode n) {
+		if (n.relopNode == null || n.relopNode.arg1.integer == null || n.relopNode.arg2.integer == null) {
+			return null;
+		}
+		int x = n.relopNode.arg1.integer, y = n.relopNode.arg2.integer;
+		String relop = n.relopNode.relop;
+		return relop.equals("lt") ? x < y : relop.equals("gt") ? x > y : x == y;
+	}
+
+	private static boolean isConstant(StatementNode.condNode n, boolean value) {
+		return Boolean.valueOf(value).equals(value(n));
+	}
+
+	private static boolean isTrue(StatementNode.condNode n) {
+		return isConstant(n, true);
+	}
+
+	private static boolean isFalse(StatementNode.condNode n) {
+		return isConstant(n, false);
+	}
+
+	/** Whether evaluating a condition is free of side effects, ie it has no division that could throw */
+	private static boolean canDrop(StatementNode.condNode n) {
+		if (n.relopNode != null) {
+			return canDrop(n.relopNode.arg1) && canDrop(n.relopNode.arg2);
+		}
+		return canDrop(n.cond1) && (n.cond2 == null || canDrop(n.cond2));
+	}
+
+	private static boolean canDrop(StatementNode.argumentNode n) {
+		if (n.sensor != null && n.sensor.index != null) {
+			return canDrop(n.sensor.index);
+		}
+		if (n.opNode == null) {
+			return true;
+		}
+		StatementNode.argumentNode divisor = n.opNode.argNode2;
+		if (n.opNode.type.equals("div") && (divisor.integer == null || divisor.integer == 0)) {
+			return false;
+		}
+		return canDrop(n.opNode.argNode1) && canDrop(divisor);
+	}
+
+	// =======================================================
+	// Expressions
+	// =======================================================
+
+	private StatementNode.argumentNode arg(StatementNode.argumentNode n) {
+		if (n.sensor != null && n.sensor.index != null) {
+			StatementNode.senNode sensor = new StatementNode.senNode(n.sensor.sensor, arg(n.sensor.index));
+			return new StatementNode.argumentNode(null, sensor, null, null);
+		}
+		if (n.opNode == null) {
+			return n;
+		}
+		StatementNode.argumentNode a = arg(n.opNode.argNode1);
+		StatementNode.argumentNode b = arg(n.opNode.argNode2);
+		String type = n.opNode.type;
+		if (a.integer != null && b.integer != null && !(type.equals("div") && b.integer == 0)) {
+			int x = a.integer, y = b.integer;
+			int value;
+			switch (type) {
+			case "add":
+				value = x + y;
+				break;
+			case "sub":
+				value = x - y;
+				break;
+			case "mul":
+				value = x * y;
+				break;
+			default:
+				value = x / y;
+			}
+			return constant(value);
+		}
+		return new StatementNode.argumentNode(null, null, new StatementNode.opNode(type, a, b), null);
+	}
+
+	private static StatementNode.argumentNode constant(int value) {
+		return new StatementNode.argumentNode(value, null, null, null);
+	}
+
+	/** A new condition that is always true or always false */
+	private static StatementNode.condNode constant(boolean value) {
+		return new StatementNode.condNode(new StatementNode.relopNode("eq", constant(value ? 0 : 1), constant(0)), null, null, null);
+	}
+
+	// =======================================================
+	// Node counting
+	// =======================================================
+
+	static int count(StatementNode.programNode p) {
+		int n = 1;
+		for (StatementNode s : p.program) {
+			n += count(s);
+		}
+		return n;
+	}
+
+	private static int count(StatementNode s) {
+		if (s.loopNode != null) {
+			return 2 + count(s.loopNode.block);
+		} else if (s.whileNode != null) {
+			return 2 + count(s.whileNode.endCondition) + count(s.whileNode.block);
+		} else if (s.ifNode != null) {
+			return 1 + count(s.ifNode);
+		} else if (s.actionNode != null) {
+			return 2 + (s.actionNode.args == null ? 0 : count(s.actionNode.args));
+		} else if (s.assignNode != null) {
+			return 3 + count(s.assignNode.value);
+		}
+		return 1;
+	}
+
+	private static int count(StatementNode.ifNode n) {
+		int c = 1 + count(n.condition) + count(n.blockNode);
+		if (n.elif != null) {
+			for (StatementNode.ifNode elif : n.elif) {
+				c += count(elif);
+			}
+		}
+		if (n.elseNode != null) {
+			c += 1 + count(n.elseNode.blockNode);
+		}
+		return c;
+	}
+
+	private static int count(StatementNode.blockNode b) {
+		int c = 1;
+		for (StatementNode s : b.statements) {
+			c += count(s);
+		}
+		return c;
+	}
+
+	private static int count(StatementNode.condNode n) {
+		if (n.relopNode != null) {
+			return 2 + count(n.relopNode.arg1) + count(n.relopNode.arg2);
+		}
+		return 1 + count(n.cond1) + (n.cond2 == null ? 0 : count(n.cond2));
+	}
+
+	private static int count(StatementNode.argumentNode n) {
+		if (n.opNode != null) {
+			return 2 + count(n.opNode.argNode1) + count(n.opNode.argNode2);
+		}
+		if (n.sensor != null && n.sensor.index != null) {
+			return 2 + count(n.sensor.index);
+		}
+		return 2;
+	}
+
+	/** Prints the optimized version of each program given on the command line */
+	public static void main(String[] args) {
+		for (String arg : args) {
+			RobotProgramNode prog = Parser.parseFile(new File(arg));
+			if (prog == null) {
+				continue;
+			}
+			Optimizer optimizer = new Optimizer();
+			RobotProgramNode optimized = optimizer.run(prog);
+			System.out.println("// " + arg + ": removed " + optimizer.removed() + " of "
+					+ count((StatementNode.programNode) prog) + " nodes");
+			System.out.println(optimized);
+		}
+	}
+}
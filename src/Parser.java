@@ -1,8 +1,8 @@
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.sql.Statement;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
-import java.util.regex.*;
 import javax.swing.JFileChooser;
 
 /**
@@ -14,30 +14,18 @@ public class Parser {
 
 	public static final String[] actions = new String[]{"move", "wait", "turnL", "turnR", "takeFuel", "turnAround", "shieldOn", "shieldOff"};
 	public static final String[] operations = new String[]{"add", "sub", "mul", "div"};
-	public static HashMap<String, Integer> variables = new HashMap<>();
+
+	/** Bump whenever the tree the parser builds changes, so cached programs are reparsed */
+	public static final int VERSION = 4;
 
 	/**
 	 * Top level parse method, called by the World
 	 */
 	static RobotProgramNode parseFile(File code) {
-		Scanner scan = null;
 		try {
-			scan = new Scanner(code);
-
-			// the only time tokens can be next to each other is
-			// when one of them is one of (){},;
-			scan.useDelimiter("\\s+|(?=[{}(),;])|(?<=[{}(),;])");
-
-			RobotProgramNode n = parseProgram(scan); // You need to implement this!!!
-
-			scan.close();
-			return n;
-		} catch (FileNotFoundException e) {
+			return parseSource(new String(Files.readAllBytes(code.toPath()), StandardCharsets.UTF_8));
+		} catch (IOException e) {
 			System.out.println("Robot program source file not found");
-		} catch (ParserFailureException e) {
-			System.out.println("Parser error:");
-			System.out.println(e.getMessage());
-			scan.close();
 		}
 		return null;
 	}
@@ -79,230 +67,255 @@ public class Parser {
 		System.out.println("Done");
 	}
 
-	// Useful Patterns
-
-	private static Pattern NUMPAT = Pattern.compile("-?\\d+"); // ("-?(0|[1-9][0-9]*)");
-	private static Pattern OPENPAREN = Pattern.compile("\\(");
-	private static Pattern CLOSEPAREN = Pattern.compile("\\)");
-	private static Pattern OPENBRACE = Pattern.compile("\\{");
-	private static Pattern CLOSEBRACE = Pattern.compile("}");
-	private static Pattern COMMA = Pattern.compile(",");
-	private static Pattern VAR = Pattern.compile("\\$[A-Za-z][A-Za-z0-9]*");
-	private static Pattern RELOP = Pattern.compile("lt|gt|eq");
-	private static Pattern OP = Pattern.compile("add|sub|mul|div");
-	private static Pattern SEMICOLON = Pattern.compile(";");
-	private static Pattern EQUALS = Pattern.compile("=");
-	private static Pattern SENSOR = Pattern.compile("fuelLeft|oppLR|oppFB|numBarrels|barrelLR|barrelFB|wallDist");
+	/**
+	 * Parses the source text of a robot program, returns null (after printing the
+	 * error) if it isn't valid.
+	 */
+	static RobotProgramNode parseSource(String source) {
+		try {
+			return new Parser(new Lexer(source)).parseProgram();
+		} catch (ParserFailureException e) {
+			System.out.println("Parser error:");
+			System.out.println(e.getMessage());
+		}
+		return null;
+	}
+
+	private final Lexer s;
+	/** variable name to its slot in the robot's frame */
+	private final Map<String, Integer> slots = new HashMap<>();
+
+	Parser(Lexer s) {
+		this.s = s;
+	}
 
 	/**
 	 * PROG ::= STMT+
 	 */
-	public static RobotProgramNode parseProgram(Scanner s) {
+	public RobotProgramNode parseProgram() {
 		ArrayList<StatementNode> buffer = new ArrayList<>(); //create local buffer for storing statements in a readable way
 		while (s.hasNext()){
-			buffer.add(parseLine(s));
+			buffer.add(parseLine());
 		}
-		return new StatementNode.programNode(buffer);
+		return new StatementNode.programNode(buffer, slots.size());
 	}
 
 	/** Chooses which parsing method to call after reading the next token.
 	 *
 	 *
-	 * @param s - our scanner object
 	 * @return the next line encapsulated in a StatementNode object
 	 */
-	private static StatementNode parseLine(Scanner s){
+	private StatementNode parseLine(){
 
+		int line = s.line();
 		StatementNode.loopNode loopNode = null;
 		StatementNode.actionNode actionNode = null;
 		StatementNode.whileNode whileNode = null;
 		StatementNode.ifNode ifNode = null;
+		StatementNode.assignNode assignNode = null;
 
-		if (s.hasNext("loop")){
+		switch (s.peek()){
+		case Lexer.LOOP:
 			s.next();
-			loopNode = parseLoop(s);
-		}
-		else if (s.hasNext("while")){
+			loopNode = parseLoop();
+			break;
+		case Lexer.WHILE:
 			s.next();
-			whileNode = parseWhile(s);
-		}
-		else if (s.hasNext("if")){
+			whileNode = parseWhile();
+			break;
+		case Lexer.IF:
 			s.next();
-			ifNode = parseIf(s);
-		}
-		else if (s.hasNext(VAR)){
-			parseVariable(s);
+			ifNode = parseIf();
+			break;
+		case Lexer.VAR:
+			assignNode = parseAssignment();
+			break;
+		default:
+			actionNode = parseAction();
 		}
-		else {
-			actionNode = parseAction(s);
-		}
-		return new StatementNode(loopNode, actionNode, whileNode, ifNode);
+		StatementNode statement = new StatementNode(loopNode, actionNode, whileNode, ifNode, assignNode);
+		statement.line = line;
+		return statement;
 	}
 
-	private static void parseVariable(Scanner s){
-		String varName = s.next();
-		require(EQUALS, "Invalid syntax: = expected", s);
-		int varValue = requireInt(NUMPAT, "Invalid syntax: integer expected", s);
-		variables.put(varName, varValue);
-		require(SEMICOLON, "Invalid syntax: ; expected", s);
+	/**
+	 * ASSGN ::= VAR "=" EXP ";"
+	 */
+	private StatementNode.assignNode parseAssignment(){
+		StatementNode.variableNode var = parseVariable();
+		require(Lexer.EQUALS, "Invalid syntax: = expected");
+		StatementNode.argumentNode value = parseArgs();
+		require(Lexer.SEMICOLON, "Invalid syntax: ; expected");
+		return new StatementNode.assignNode(var, value);
 	}
 
-	private static StatementNode.loopNode parseLoop(Scanner s){
-		return new StatementNode.loopNode(parseBlock(s));
+	/** Resolves a variable to its frame slot, allocating one the first time it's seen */
+	private StatementNode.variableNode parseVariable(){
+		String name = s.text(s.next());
+		Integer slot = slots.get(name);
+		if (slot == null){
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return new StatementNode.variableNode(name, slot);
+	}
+
+	private StatementNode.loopNode parseLoop(){
+		return new StatementNode.loopNode(parseBlock());
 	}
 
-	private static StatementNode.whileNode parseWhile(Scanner s){
-		require(OPENPAREN, "Invalid syntax: ( expected", s);
-		StatementNode.condNode condition = parseCond(s);
-		require(CLOSEPAREN, "Invalid syntax: ) expected", s);
-		StatementNode.blockNode blockNode = parseBlock(s);
+	private StatementNode.whileNode parseWhile(){
+		require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+		StatementNode.condNode condition = parseCond();
+		require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
+		StatementNode.blockNode blockNode = parseBlock();
 		return new StatementNode.whileNode(blockNode, condition);
 	}
 
-	private static StatementNode.ifNode parseIf(Scanner s){
-		require(OPENPAREN, "Invalid syntax: ( expected", s);
-		StatementNode.condNode condition = parseCond(s);
-		require(CLOSEPAREN, "Invalid syntax: ) expected", s);
+	private StatementNode.ifNode parseIf(){
+		require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+		StatementNode.condNode condition = parseCond();
+		require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 		StatementNode.elseNode elseNode = null;
 		ArrayList<StatementNode.ifNode> elif = new ArrayList<>();
-		StatementNode.blockNode blockNode = parseBlock(s);
-		while (s.hasNext("elif")){
-			s.next();
-			elif.add(parseIf(s));
+		StatementNode.blockNode blockNode = parseBlock();
+		while (checkFor(Lexer.ELIF)){
+			elif.add(parseIf());
 		}
-		if (s.hasNext("else")){
-			s.next();
-			elseNode = parseElse(s);
+		if (checkFor(Lexer.ELSE)){
+			elseNode = parseElse();
 		}
 		return new StatementNode.ifNode(condition, blockNode, elseNode, elif);
 	}
 
-	private static StatementNode.elseNode parseElse(Scanner s){
-		return new StatementNode.elseNode(parseBlock(s));
+	private StatementNode.elseNode parseElse(){
+		return new StatementNode.elseNode(parseBlock());
 	}
 
 
-	private static StatementNode.condNode parseCond(Scanner s){
+	private StatementNode.condNode parseCond(){
+		int line = s.line();
+		StatementNode.condNode cond = parseCondition();
+		cond.line = line;
+		return cond;
+	}
+
+	private StatementNode.condNode parseCondition(){
 		StatementNode.relopNode relopNode;
 		StatementNode.condNode cond1;
 		StatementNode.condNode cond2;
 
-
-		if (s.hasNext(RELOP)){
-			relopNode = parseRelop(s);
+		int kind = s.peek();
+		if (Lexer.isRelop(kind)){
+			relopNode = parseRelop();
 			return new StatementNode.condNode(relopNode, null, null, null);
 		}
-		else if (s.hasNext("and") || s.hasNext("or")){
-			String operation = s.next();
-			require(OPENPAREN, "Invalid syntax: ( expected", s);
-			cond1 = parseCond(s);
-			require(COMMA, "Invalid syntax: , expected", s);
-			cond2 = parseCond(s);
-			require(CLOSEPAREN, "Invalid syntax: ) expected", s);
+		else if (kind == Lexer.AND || kind == Lexer.OR){
+			String operation = s.text(s.next());
+			require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+			cond1 = parseCond();
+			require(Lexer.COMMA, "Invalid syntax: , expected");
+			cond2 = parseCond();
+			require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 			return new StatementNode.condNode(null, operation, cond1, cond2);
 		}
-		else if (s.hasNext("not")){
-			String operation = s.next();
-			require(OPENPAREN, "Invalid syntax: ( expected", s);
-			cond1 = parseCond(s);
-			require(CLOSEPAREN, "Invalid syntax: ) expected", s);
+		else if (kind == Lexer.NOT){
+			String operation = s.text(s.next());
+			require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+			cond1 = parseCond();
+			require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 			return new StatementNode.condNode(null, operation, cond1, null);
 		}
 		else {
-			fail("Invalid syntax: not a suitable condition", s);
+			fail("Invalid syntax: not a suitable condition");
 			return null;
 		}
 	}
 
 
-	private static StatementNode.actionNode parseAction(Scanner s){
-		String action = s.next();
+	private StatementNode.actionNode parseAction(){
+		int token = s.next();
+		int kind = s.kind(token);
 		StatementNode.argumentNode args = null;
-		String[] array = Parser.actions;
-		for (int i = 0; i < array.length; i++){
-			if (array[i].equals(action)){
-				if (s.hasNext(OPENPAREN)){
-					if (action.equals(array[0]) || action.equals(array[1])) {
-						s.next();
-						args = parseArgs(s);
-						require(CLOSEPAREN, "Invalid syntax: ) expected", s);
-					}
-					else fail("Invalid syntax: only move and wait take arguments", s);
-				}
-				require(SEMICOLON, "Invalid syntax: ; expected", s);
-				return new StatementNode.actionNode(action, args);
+		if (!Lexer.isAction(kind)){
+			fail("Invalid syntax: statement expected");
+		}
+		if (checkFor(Lexer.OPENPAREN)){
+			if (kind == Lexer.MOVE || kind == Lexer.WAIT) {
+				args = parseArgs();
+				require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 			}
+			else fail("Invalid syntax: only move and wait take arguments");
 		}
-		fail("Invalid syntax: statement expected", s);
-		return null;
+		require(Lexer.SEMICOLON, "Invalid syntax: ; expected");
+		return new StatementNode.actionNode(actions[kind - Lexer.MOVE], args);
 	}
 
-	private static StatementNode.blockNode parseBlock(Scanner s){
+	private StatementNode.blockNode parseBlock(){
 		List<StatementNode> statements = new ArrayList<>();
-		require(OPENBRACE, "Invalid syntax: { expected", s);
-		while (s.hasNext()) {
-			if (s.hasNext(CLOSEBRACE)){
-				break;
-			}
-			statements.add(parseLine(s));
+		require(Lexer.OPENBRACE, "Invalid syntax: { expected");
+		while (s.hasNext() && s.peek() != Lexer.CLOSEBRACE) {
+			statements.add(parseLine());
 		}
-		require(CLOSEBRACE, "Invalid syntax: } expected", s);
+		require(Lexer.CLOSEBRACE, "Invalid syntax: } expected");
 		if (statements.size() == 0){
-			fail("Invalid syntax: statement expected", s);
+			fail("Invalid syntax: statement expected");
 		}
 		return new StatementNode.blockNode(statements);
 	}
 
-	private static StatementNode.argumentNode parseArgs(Scanner s){
+	private StatementNode.argumentNode parseArgs(){
 		Integer integer = null;
 		StatementNode.opNode opNode = null;
 		StatementNode.senNode senNode = null;
-		if (s.hasNext(NUMPAT)){
-			integer = s.nextInt();
+		StatementNode.variableNode var = null;
+		int kind = s.peek();
+		if (kind == Lexer.NUM){
+			integer = s.value(s.next());
 		}
-		else if (s.hasNext(OP)) {
-			opNode = parseOp(s);
+		else if (Lexer.isOp(kind)) {
+			opNode = parseOp();
 		}
-		else if (s.hasNext(VAR)){
-			String key = s.next();
-			boolean foundKey = false;
-			for (String string : variables.keySet()){
-				if (s.equals(key)){
-					foundKey = true;
-					integer = variables.get(key);
-				}
-			}
-			if (!foundKey){
-				variables.put(key, 0);
-				integer = 0;
-			}
+		else if (kind == Lexer.VAR){
+			var = parseVariable();
+		}
+		else if (Lexer.isSensor(kind)){
+			senNode = parseSensor();
 		}
-		else senNode = parseSensor(s);
-		return new StatementNode.argumentNode(integer, senNode, opNode);
+		else fail("Invalid syntax: argument expected");
+		return new StatementNode.argumentNode(integer, senNode, opNode, var);
 	}
 
-	private static StatementNode.senNode parseSensor(Scanner s){
-		String sensorType = s.next();
-		return new StatementNode.senNode(sensorType);
+	private StatementNode.senNode parseSensor(){
+		int kind = s.peek();
+		String sensorType = s.text(s.next());
+		StatementNode.argumentNode index = null;
+		// the barrel sensors can ask about the nth closest barrel, not just the closest
+		if (s.peek() == Lexer.OPENPAREN && (kind == Lexer.BARREL_LR || kind == Lexer.BARREL_FB || kind == Lexer.BARREL_DIST)){
+			s.next();
+			index = parseArgs();
+			require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
+		}
+		return new StatementNode.senNode(sensorType, index);
 	}
 
-	private static StatementNode.relopNode parseRelop(Scanner s){
-		String type = s.next();
-		require(OPENPAREN, "Invalid syntax: ( expected", s);
-		StatementNode.argumentNode arg1 = parseArgs(s);
-		require(COMMA, "Invalid syntax: , expected", s);
-		StatementNode.argumentNode arg2 = parseArgs(s);
-		require(CLOSEPAREN, "Invalid syntax: ) expected", s);
+	private StatementNode.relopNode parseRelop(){
+		String type = s.text(s.next());
+		require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+		StatementNode.argumentNode arg1 = parseArgs();
+		require(Lexer.COMMA, "Invalid syntax: , expected");
+		StatementNode.argumentNode arg2 = parseArgs();
+		require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 		return new StatementNode.relopNode(type, arg1, arg2);
 	}
 
-	private static StatementNode.opNode parseOp(Scanner s){
-		String type = s.next();
-		require(OPENPAREN, "Invalid syntax: ( expected", s);
-		StatementNode.argumentNode arg1 = parseArgs(s);
-		require(COMMA, "Invalid syntax: , expected", s);
-		StatementNode.argumentNode arg2 = parseArgs(s);
-		require(CLOSEPAREN, "Invalid syntax: ) expected", s);
+	private StatementNode.opNode parseOp(){
+		String type = s.text(s.next());
+		require(Lexer.OPENPAREN, "Invalid syntax: ( expected");
+		StatementNode.argumentNode arg1 = parseArgs();
+		require(Lexer.COMMA, "Invalid syntax: , expected");
+		StatementNode.argumentNode arg2 = parseArgs();
+		require(Lexer.CLOSEPAREN, "Invalid syntax: ) expected");
 		return new StatementNode.opNode(type, arg1, arg2);
 	}
 
@@ -310,72 +323,33 @@ public class Parser {
 	/**
 	 * Report a failure in the parser.
 	 */
-	static void fail(String message, Scanner s) {
-		String msg = message + "\n   @ ...";
+	void fail(String message) {
+		StringBuilder msg = new StringBuilder(message).append("\n   @ ...");
 		for (int i = 0; i < 5 && s.hasNext(); i++) {
-			msg += " " + s.next();
+			msg.append(' ').append(s.text(s.next()));
 		}
 		throw new ParserFailureException(msg + "...");
 	}
 
 	/**
-	 * Requires that the next token matches a pattern if it matches, it consumes
-	 * and returns the token, if not, it throws an exception with an error
+	 * Requires that the next token is of the given kind. If it is, it consumes
+	 * and returns the token index, if not, it throws an exception with an error
 	 * message
 	 */
-	static String require(String p, String message, Scanner s) {
-		if (s.hasNext(p)) {
-			return s.next();
-		}
-		fail(message, s);
-		return null;
-	}
-
-	static String require(Pattern p, String message, Scanner s) {
-		if (s.hasNext(p)) {
+	int require(int kind, String message) {
+		if (s.peek() == kind) {
 			return s.next();
 		}
-		fail(message, s);
-		return null;
-	}
-
-	/**
-	 * Requires that the next token matches a pattern (which should only match a
-	 * number) if it matches, it consumes and returns the token as an integer if
-	 * not, it throws an exception with an error message
-	 */
-	static int requireInt(String p, String message, Scanner s) {
-		if (s.hasNext(p) && s.hasNextInt()) {
-			return s.nextInt();
-		}
-		fail(message, s);
-		return -1;
-	}
-
-	static int requireInt(Pattern p, String message, Scanner s) {
-		if (s.hasNext(p) && s.hasNextInt()) {
-			return s.nextInt();
-		}
-		fail(message, s);
+		fail(message);
 		return -1;
 	}
 
 	/**
-	 * Checks whether the next token in the scanner matches the specified
-	 * pattern, if so, consumes the token and return true. Otherwise returns
-	 * false without consuming anything.
+	 * Checks whether the next token is of the given kind, if so, consumes the
+	 * token and return true. Otherwise returns false without consuming anything.
 	 */
-	static boolean checkFor(String p, Scanner s) {
-		if (s.hasNext(p)) {
-			s.next();
-			return true;
-		} else {
-			return false;
-		}
-	}
-
-	static boolean checkFor(Pattern p, Scanner s) {
-		if (s.hasNext(p)) {
+	boolean checkFor(int kind) {
+		if (s.peek() == kind) {
 			s.next();
 			return true;
 		} else {
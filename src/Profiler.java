@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts how often each part of a robot program runs. Profiling is turned on
+ * with the robot.profile system property. A profiled program is a copy of the
+ * parsed StatementNode tree with every statement and condition replaced by a
+ * counting subclass, so nothing is instrumented (and nothing is counted) when
+ * profiling is off. Profiled programs always run on the parsed tree.
+ *
+ * The report is the program source with each line annotated with how many
+ * times the statements starting on it ran, their share of all statements run,
+ * and how often each condition on it was true.
+ */
+public class Profiler {
+
+	public static final boolean ENABLED = Boolean.getBoolean("robot.profile");
+
+	private final String name;
+	private final String source;
+	private final List<CountedStatement> statements = new ArrayList<>();
+	private final List<CountedCond> conditions = new ArrayList<>();
+	private final RobotProgramNode program;
+
+	private Profiler(String name, String source, StatementNode.programNode parsed) {
+		this.name = name;
+		this.source = source;
+		this.program = new StatementNode.programNode(statements(parsed.program), parsed.frameSize);
+	}
+
+	/**
+	 * Parses and instruments the program in a file. Returns null if the file
+	 * can't be read or doesn't parse.
+	 */
+	public static Profiler load(File code) {
+		String source;
+		try {
+			source = new String(Files.readAllBytes(code.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.out.println("Robot program source file not found");
+			return null;
+		}
+		RobotProgramNode parsed = Parser.parseSource(source);
+		if (parsed == null) {
+			return null;
+		}
+		return new Profiler(code.getName(), source, (StatementNode.programNode) parsed);
+	}
+
+	/** The instrumented program */
+	public RobotProgramNode program() {
+		return program;
+	}
+
+	// =======================================================
+	// Instrumentation
+	// =======================================================
+
+	private List<StatementNode> statements(List<StatementNode> in) {
+		List<StatementNode> out = new ArrayList<>(in.size());
+		for (StatementNode s : in) {
+			out.add(statement(s));
+		}
+		return out;
+	}
+
+	private StatementNode statement(StatementNode s) {
+		StatementNode.loopNode loopNode = null;
+		StatementNode.whileNode whileNode = null;
+		StatementNode.ifNode ifNode = null;
+		if (s.loopNode != null) {
+			loopNode = new StatementNode.loopNode(block(s.loopNode.block));
+		} else if (s.whileNode != null) {
+			whileNode = new StatementNode.whileNode(block(s.whileNode.block), cond(s.whileNode.endCondition));
+		} else if (s.ifNode != null) {
+			ifNode = ifNode(s.ifNode);
+		}
+		CountedStatement counted = new CountedStatement(loopNode, s.actionNode, whileNode, ifNode, s.assignNode);
+		counted.line = s.line;
+		statements.add(counted);
+		return counted;
+	}
+
+	private StatementNode.ifNode ifNode(StatementNode.ifNode n) {
+		List<StatementNode.ifNode> elif = new ArrayList<>();
+		for (StatementNode.ifNode e : n.elif) {
+			elif.add(ifNode(e));
+		}
+		StatementNode.elseNode elseNode = (n.elseNode == null) ? null : new StatementNode.elseNode(block(n.elseNode.blockNode));
+		return new StatementNode.ifNode(cond(n.condition), block(n.blockNode), elseNode, elif);
+	}
+
+	private StatementNode.blockNode block(StatementNode.blockNode b) {
+		return new StatementNode.blockNode(statements(b.statements));
+	}
+
+	private StatementNode.condNode cond(StatementNode.condNode n) {
+		return cond(n, 0);
+	}
+
+	/** Only the outermost condition on each line is reported, its parts are counted but not shown */
+	private StatementNode.condNode cond(StatementNode.condNode n, int parentLine) {
+		StatementNode.condNode cond1 = (n.cond1 == null) ? null : cond(n.cond1, n.line);
+		StatementNode.condNode cond2 = (n.cond2 == null) ? null : cond(n.cond2, n.line);
+		CountedCond counted = new CountedCond(n.relopNode, n.operation, cond1, cond2);
+		counted.line = n.line;
+		if (n.line != parentLine) {
+			conditions.add(counted);
+		}
+		return counted;
+	}
+
+	private static final class CountedStatement extends StatementNode {
+
+		long hits;
+
+		CountedStatement(loopNode loopNode, actionNode actionNode, whileNode whileNode, ifNode ifNode, assignNode assignNode) {
+			super(loopNode, actionNode, whileNode, ifNode, assignNode);
+		}
+
+		@Override
+		public void execute(Robot robot) {
+			hits++;
+			super.execute(robot);
+		}
+	}
+
+	private static final class CountedCond extends StatementNode.condNode {
+
+		long taken, notTaken;
+
+		CountedCond(StatementNode.relopNode relopNode, String operation, StatementNode.condNode cond1, StatementNode.condNode cond2) {
+			super(relopNode, operation, cond1, cond2);
+		}
+
+		@Override
+		public boolean evaluate(Robot robot) {
+			boolean result = super.evaluate(robot);
+			if (result) {
+				taken++;
+			} else {
+				notTaken++;
+			}
+			return result;
+		}
+	}
+
+	// =======================================================
+	// Report
+	// =======================================================
+
+	/** The source annotated with the counts so far */
+	public String report() {
+		String[] lines = source.split("\r?\n", -1);
+		long[] hits = new long[lines.length + 1];
+		boolean[] runnable = new boolean[lines.length + 1];
+		long total = 0;
+		for (CountedStatement s : statements) {
+			total += s.hits;
+			if (s.line > 0 && s.line <= lines.length) {
+				hits[s.line] += s.hits;
+				runnable[s.line] = true;
+			}
+		}
+		StringBuilder out = new StringBuilder();
+		out.append("Profile of ").append(name).append(": ").append(total).append(" statements run\n");
+		for (int line = 1; line <= lines.length; line++) {
+			if (runnable[line]) {
+				double percent = (total == 0) ? 0 : 100.0 * hits[line] / total;
+				out.append(String.format("%10d %5.1f%% | ", hits[line], percent));
+			} else {
+				out.append(String.format("%17s | ", ""));
+			}
+			out.append(lines[line - 1]);
+			for (CountedCond c : conditions) {
+				if (c.line == line) {
+					out.append("  [").append(c).append(": true ").append(c.taken)
+							.append(" of ").append(c.taken + c.notTaken).append(']');
+				}
+			}
+			out.append('\n');
+		}
+		return out.toString();
+	}
+}
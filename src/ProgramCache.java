@@ -0,0 +1,130 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of parsed (optimized and lowered) robot programs, keyed by a hash
+ * of the file contents and the parser version. Programs are never modified
+ * after parsing, so one instance can be shared by every robot (and every world)
+ * that loads the same source.
+ */
+public class ProgramCache {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static final ProgramCache shared = new ProgramCache(DEFAULT_CAPACITY);
+
+	public static ProgramCache shared() {
+		return shared;
+	}
+
+	private final int capacity;
+	private final LinkedHashMap<String, RobotProgramNode> programs;
+	/** the last key loaded for each file, so a changed file can drop its stale entry */
+	private final Map<String, String> keysByPath = new HashMap<>();
+	private long hits, misses;
+
+	public ProgramCache(int capacity) {
+		this.capacity = capacity;
+		this.programs = new LinkedHashMap<String, RobotProgramNode>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RobotProgramNode> eldest) {
+				return size() > ProgramCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the program in the given file, parsing it only if this exact
+	 * source hasn't been parsed before. Returns null if the file can't be read
+	 * or doesn't parse.
+	 */
+	public RobotProgramNode load(File code) {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(code.toPath());
+		} catch (IOException e) {
+			System.out.println("Robot program source file not found");
+			return null;
+		}
+		String key = key(bytes);
+		String path = code.getAbsolutePath();
+		synchronized (this) {
+			String previous = keysByPath.put(path, key);
+			if (previous != null && !previous.equals(key)) {
+				programs.remove(previous);
+			}
+			RobotProgramNode prog = programs.get(key);
+			if (prog != null) {
+				hits++;
+				return prog;
+			}
+			misses++;
+		}
+		// parse outside the lock, two threads racing on the same source just both parse it
+		RobotProgramNode prog = Lowering.lower(Optimizer.optimize(Parser.parseSource(new String(bytes, StandardCharsets.UTF_8))));
+		if (prog != null) {
+			synchronized (this) {
+				RobotProgramNode existing = programs.putIfAbsent(key, prog);
+				if (existing != null) {
+					prog = existing;
+				}
+			}
+		}
+		return prog;
+	}
+
+	/**
+	 * Drops the cached program for the given file, if there is one.
+	 */
+	public synchronized void invalidate(File code) {
+		String key = keysByPath.remove(code.getAbsolutePath());
+		if (key != null) {
+			programs.remove(key);
+		}
+	}
+
+	public synchronized void clear() {
+		programs.clear();
+		keysByPath.clear();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return programs.size();
+	}
+
+	public String toString() {
+		return "ProgramCache[size=" + size() + " hits=" + hits() + " misses=" + misses() + "]";
+	}
+
+	/** The hex SHA-256 of a program's source and the parser version, which programs are cached by */
+	static String key(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update((byte) Parser.VERSION);
+		byte[] hash = digest.digest(bytes);
+		StringBuilder key = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return key.toString();
+	}
+}
@@ -0,0 +1,282 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A game saved by ReplayRecorder. The file is memory mapped, and opening it
+ * only reads the header and the keyframe index at the end, so even a very
+ * long game opens straight away; frames are only read as they're played.
+ *
+ * A Cursor is a position in the replay. Seeking goes to the keyframe at or
+ * before the turn and reads forward from there, so it never reads more than
+ * a keyframe interval of frames, and playing forward reads one frame a turn.
+ * Cursors are independent, so one replay can have several.
+ *
+ * If the recording wasn't closed (the game crashed, say), there's no index
+ * and the replay is read through once when it's opened to find the
+ * keyframes. A frame cut off at the end is left out.
+ *
+ * Usage: Replay file [turn...] prints the robots and barrels at each turn
+ */
+public class Replay {
+
+	private final ByteBuffer data;
+	private final int size, robots, interval;
+	private final long seed;
+	private final String[] colours;
+	/** where the frames start */
+	private final int first;
+	private int frames;
+	private int[] keyframes;
+
+	public Replay(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too big to be a replay");
+			}
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		ByteBuffer in = data.duplicate();
+		try {
+			if (in.getInt() != ReplayRecorder.MAGIC) {
+				throw new IOException(file + " isn't a replay");
+			}
+			if (in.getInt() != ReplayRecorder.VERSION) {
+				throw new IOException(file + " is from a different version of the game");
+			}
+			size = in.getInt();
+			robots = in.getInt();
+			interval = in.getInt();
+			seed = in.getLong();
+			colours = new String[robots + 1];
+			for (int i = 1; i <= robots; i++) {
+				byte[] colour = new byte[in.getShort() & 0xFFFF];
+				in.get(colour);
+				colours[i] = new String(colour, StandardCharsets.UTF_8);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(file + " isn't a replay");
+		}
+		first = in.position();
+		if (!readIndex()) {
+			scan();
+		}
+	}
+
+	/** Reads the keyframe index from the end of the file, returns false if there isn't one */
+	private boolean readIndex() {
+		int length = data.limit();
+		if (length - first < 8 || data.getInt(length - 4) != ReplayRecorder.MAGIC) {
+			return false;
+		}
+		ByteBuffer in = data.duplicate();
+		in.position(data.getInt(length - 8));
+		if (in.get() != ReplayRecorder.END) {
+			return false;
+		}
+		frames = in.getInt();
+		keyframes = new int[in.getInt()];
+		for (int i = 0; i < keyframes.length; i++) {
+			keyframes[i] = in.getInt();
+		}
+		return true;
+	}
+
+	/** Finds the keyframes by reading every frame */
+	private void scan() {
+		keyframes = new int[16];
+		int count = 0;
+		Cursor cursor = new Cursor();
+		cursor.in.position(first);
+		try {
+			while (cursor.in.hasRemaining()) {
+				int start = cursor.in.position();
+				byte kind = cursor.in.get();
+				if (kind == ReplayRecorder.END) {
+					break;
+				}
+				cursor.in.position(start);
+				cursor.readFrame();
+				if (kind == ReplayRecorder.KEYFRAME) {
+					if (count == keyframes.length) {
+						keyframes = Arrays.copyOf(keyframes, count * 2);
+					}
+					keyframes[count++] = start;
+				}
+				frames++;
+			}
+		} catch (BufferUnderflowException e) {
+			// the last frame was cut off
+		}
+		keyframes = Arrays.copyOf(keyframes, count);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int robotCount() {
+		return robots;
+	}
+
+	/** Turns in the replay; the last one is frames() - 1 */
+	public int frames() {
+		return frames;
+	}
+
+	/** The seed of the recorded world */
+	public long getSeed() {
+		return seed;
+	}
+
+	public String colour(int robot) {
+		return colours[robot];
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * The state of the game at a turn of the replay.
+	 */
+	public class Cursor {
+
+		private final ByteBuffer in = data.duplicate();
+		private final int[] x = new int[robots + 1], y = new int[robots + 1];
+		private final int[] dir = new int[robots + 1], fuel = new int[robots + 1];
+		private final boolean[] shield = new boolean[robots + 1];
+		private final BarrelIndex barrels = new BarrelIndex(size);
+		/** the turn the cursor's at, -1 before seeking */
+		private int turn = -1;
+
+		/**
+		 * Moves to a turn, which is clamped to the replay. Returns false if
+		 * there are no frames.
+		 */
+		public boolean seek(int target) {
+			target = Math.max(0, Math.min(target, frames - 1));
+			if (target < 0 || keyframes.length == 0) {
+				return false;
+			}
+			int key = Math.min(target / interval, keyframes.length - 1);
+			// read on from here unless a keyframe is closer
+			if (turn < 0 || target < turn || key * interval > turn) {
+				in.position(keyframes[key]);
+				turn = key * interval - 1;
+			}
+			while (turn < target) {
+				readFrame();
+				turn++;
+			}
+			return true;
+		}
+
+		public int turn() {
+			return turn;
+		}
+
+		public int x(int robot) {
+			return x[robot];
+		}
+
+		public int y(int robot) {
+			return y[robot];
+		}
+
+		/** The direction's ordinal: north, west, south or east */
+		public int direction(int robot) {
+			return dir[robot];
+		}
+
+		public int fuel(int robot) {
+			return fuel[robot];
+		}
+
+		public boolean shield(int robot) {
+			return shield[robot];
+		}
+
+		public BarrelIndex barrels() {
+			return barrels;
+		}
+
+		private void readFrame() {
+			byte kind = in.get();
+			if (kind == ReplayRecorder.KEYFRAME) {
+				for (int i = 1; i <= robots; i++) {
+					x[i] = readVarint();
+					y[i] = readVarint();
+					dir[i] = in.get();
+					fuel[i] = ReplayRecorder.unzigzag(readVarint());
+					shield[i] = in.get() != 0;
+				}
+				barrels.clear();
+			} else {
+				for (int i = 1; i <= robots; i++) {
+					int changed = in.get();
+					if ((changed & ReplayRecorder.CHANGED_POSITION) != 0) {
+						x[i] += ReplayRecorder.unzigzag(readVarint());
+						y[i] += ReplayRecorder.unzigzag(readVarint());
+					}
+					if ((changed & ReplayRecorder.CHANGED_DIRECTION) != 0) {
+						dir[i] = in.get();
+					}
+					if ((changed & ReplayRecorder.CHANGED_FUEL) != 0) {
+						fuel[i] += ReplayRecorder.unzigzag(readVarint());
+					}
+					if ((changed & ReplayRecorder.CHANGED_SHIELD) != 0) {
+						shield[i] = !shield[i];
+					}
+				}
+			}
+			// a keyframe's barrels are all added, a frame's all flip
+			int count = readVarint();
+			int cell = -1;
+			for (int n = 0; n < count; n++) {
+				cell += readVarint() + 1;
+				int cx = cell % size, cy = cell / size;
+				if (!barrels.add(cx, cy)) {
+					barrels.remove(cx, cy);
+				}
+			}
+		}
+
+		private int readVarint() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.get();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: Replay file [turn...]");
+			return;
+		}
+		Replay replay = new Replay(new File(args[0]));
+		System.out.println(replay.frames() + " turns, " + replay.robotCount() + " robots, " + replay.getSize() + "x"
+				+ replay.getSize() + ", seed " + replay.getSeed());
+		Cursor cursor = replay.cursor();
+		for (int i = 1; i < args.length; i++) {
+			if (!cursor.seek(Integer.parseInt(args[i]))) {
+				break;
+			}
+			System.out.println("turn " + cursor.turn() + ": " + cursor.barrels().size() + " barrels");
+			for (int r = 1; r <= replay.robotCount(); r++) {
+				System.out.println("Robot " + r + ": x=" + cursor.x(r) + " y=" + cursor.y(r) + " dir="
+						+ Robot.directionName(cursor.direction(r)) + " fuel=" + cursor.fuel(r) + " shield=" + cursor.shield(r));
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Saves a game turn by turn, to be played back with Replay. Every turn is a
+ * frame with each robot's position, direction, fuel and shield, and the
+ * barrels that appeared or were taken.
+ *
+ * Most frames only hold what changed since the last one: a byte per robot
+ * saying which of its values changed, small changes as varints, and the
+ * barrels that changed as gaps between their cell numbers. A robot that did
+ * nothing costs one byte. Every KEYFRAME_INTERVAL turns there's a keyframe
+ * with everything, so a replay can be started from any keyframe, and the
+ * file ends with the position of every keyframe, so opening a replay doesn't
+ * mean reading all of it.
+ *
+ * The file is big endian:
+ *
+ * - header: MAGIC, VERSION, size, robots, keyframe interval, seed, then each
+ * robot's colour (writeUTF)
+ *
+ * - keyframe: KEYFRAME, then per robot x, y (varints), direction, fuel
+ * (zigzag varint), shield, then the barrel count and the gaps between barrels
+ *
+ * - frame: FRAME, then per robot a byte of CHANGED_ bits and the changes (x
+ * and y and fuel as zigzag varint differences, the new direction; a changed
+ * shield just flips), then the count and gaps of the barrels that changed
+ *
+ * - index: END, frame count, keyframe count, each keyframe's offset, then
+ * the offset of END and MAGIC
+ *
+ * Replays are memory mapped, so they have to be under 2GB.
+ */
+public class ReplayRecorder {
+
+	static final int MAGIC = 0x52424f54;
+	static final int VERSION = 1;
+
+	static final byte FRAME = 0, KEYFRAME = 1, END = 2;
+	static final int CHANGED_POSITION = 1, CHANGED_DIRECTION = 2, CHANGED_FUEL = 4, CHANGED_SHIELD = 8;
+
+	public static final int KEYFRAME_INTERVAL = 1000;
+
+	private final DataOutputStream out;
+	private final int interval;
+	private final int[] x, y, dir, fuel;
+	private final boolean[] shield;
+	/** the barrels as of the last frame, and now */
+	private long[] barrels, current;
+	private int[] keyframes = new int[16];
+	private int frames, keyframeCount;
+	private boolean closed;
+
+	public ReplayRecorder(File file, World world) throws IOException {
+		this(file, world, KEYFRAME_INTERVAL);
+	}
+
+	public ReplayRecorder(File file, World world, int interval) throws IOException {
+		this.interval = interval;
+		int n = world.robotCount();
+		x = new int[n + 1];
+		y = new int[n + 1];
+		dir = new int[n + 1];
+		fuel = new int[n + 1];
+		shield = new boolean[n + 1];
+		barrels = new long[world.getBarrels().words()];
+		current = new long[barrels.length];
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(world.getSize());
+		out.writeInt(n);
+		out.writeInt(interval);
+		out.writeLong(world.getSeed());
+		for (int i = 1; i <= n; i++) {
+			out.writeUTF(world.getRobot(i).getColour());
+		}
+	}
+
+	/**
+	 * Adds a frame for the world as it is now. If the replay can't be
+	 * written, says so and stops recording.
+	 */
+	public synchronized void record(World world) {
+		if (closed) {
+			return;
+		}
+		try {
+			world.getBarrels().copyBits(current);
+			if (frames % interval == 0) {
+				keyframe(world);
+			} else {
+				frame(world);
+			}
+			long[] swap = barrels;
+			barrels = current;
+			current = swap;
+			frames++;
+		} catch (IOException e) {
+			System.out.println("Couldn't write the replay: " + e.getMessage());
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException ignored) {
+				// it's already failed, and said so
+			}
+		}
+	}
+
+	private void keyframe(World world) throws IOException {
+		if (keyframeCount == keyframes.length) {
+			keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+		}
+		keyframes[keyframeCount++] = out.size();
+		out.writeByte(KEYFRAME);
+		for (int i = 1; i < x.length; i++) {
+			Robot robot = world.getRobot(i);
+			x[i] = robot.getX();
+			y[i] = robot.getY();
+			dir[i] = robot.getDirection();
+			fuel[i] = robot.fuelLevel();
+			shield[i] = robot.shielded();
+			writeVarint(x[i]);
+			writeVarint(y[i]);
+			out.writeByte(dir[i]);
+			writeVarint(zigzag(fuel[i]));
+			out.writeBoolean(shield[i]);
+		}
+		int count = 0;
+		for (long word : current) {
+			count += Long.bitCount(word);
+		}
+		writeCells(current, world.getBarrels(), count);
+	}
+
+	private void frame(World world) throws IOException {
+		out.writeByte(FRAME);
+		for (int i = 1; i < x.length; i++) {
+			Robot robot = world.getRobot(i);
+			int nx = robot.getX(), ny = robot.getY(), ndir = robot.getDirection(), nfuel = robot.fuelLevel();
+			boolean nshield = robot.shielded();
+			int changed = 0;
+			if (nx != x[i] || ny != y[i]) {
+				changed |= CHANGED_POSITION;
+			}
+			if (ndir != dir[i]) {
+				changed |= CHANGED_DIRECTION;
+			}
+			if (nfuel != fuel[i]) {
+				changed |= CHANGED_FUEL;
+			}
+			if (nshield != shield[i]) {
+				changed |= CHANGED_SHIELD;
+			}
+			out.writeByte(changed);
+			if ((changed & CHANGED_POSITION) != 0) {
+				writeVarint(zigzag(nx - x[i]));
+				writeVarint(zigzag(ny - y[i]));
+			}
+			if ((changed & CHANGED_DIRECTION) != 0) {
+				out.writeByte(ndir);
+			}
+			if ((changed & CHANGED_FUEL) != 0) {
+				writeVarint(zigzag(nfuel - fuel[i]));
+			}
+			x[i] = nx;
+			y[i] = ny;
+			dir[i] = ndir;
+			fuel[i] = nfuel;
+			shield[i] = nshield;
+		}
+		// the barrels that changed are the bits that differ, kept in current
+		// until it's swapped in, so they're put back after
+		int count = 0;
+		for (int w = 0; w < current.length; w++) {
+			current[w] ^= barrels[w];
+			count += Long.bitCount(current[w]);
+		}
+		writeCells(current, world.getBarrels(), count);
+		for (int w = 0; w < current.length; w++) {
+			current[w] ^= barrels[w];
+		}
+	}
+
+	/** Writes the count, then the gaps between the cells whose bits are set */
+	private void writeCells(long[] bits, BarrelIndex index, int count) throws IOException {
+		writeVarint(count);
+		int last = -1;
+		for (int w = 0; w < bits.length; w++) {
+			for (long word = bits[w]; word != 0; word &= word - 1) {
+				int cell = index.index(w, Long.numberOfTrailingZeros(word));
+				writeVarint(cell - last - 1);
+				last = cell;
+			}
+		}
+	}
+
+	private void writeVarint(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/** Small negative numbers as small positive ones, for varints */
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/** Frames recorded so far */
+	public synchronized int frames() {
+		return frames;
+	}
+
+	/**
+	 * Writes the index and closes the file. A replay that's never closed can
+	 * still be played, it's just slower to open.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			int end = out.size();
+			out.writeByte(END);
+			out.writeInt(frames);
+			out.writeInt(keyframeCount);
+			for (int i = 0; i < keyframeCount; i++) {
+				out.writeInt(keyframes[i]);
+			}
+			out.writeInt(end);
+			out.writeInt(MAGIC);
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Couldn't write the replay: " + e.getMessage());
+		}
+	}
+}
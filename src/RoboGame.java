@@ -9,11 +9,15 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JRadioButtonMenuItem;
 
 @SuppressWarnings("serial")
 public class RoboGame extends JFrame {
@@ -21,8 +25,6 @@ public class RoboGame extends JFrame {
 	private WorldComponent worldComp = new WorldComponent();
 	private File code1, code2;
 
-	public static boolean debugDisplay = true;
-
 	public RoboGame() {
 		super("Robots");
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -38,6 +40,108 @@ public class RoboGame extends JFrame {
 		setVisible(true);
 	}
 
+	/**
+	 * A choice of log level, and a switch for each robot's output. Both take
+	 * effect straight away, including in a running game.
+	 */
+	private void addDebugItems(JMenu debugMenu) {
+		ButtonGroup levels = new ButtonGroup();
+		for (final RobotLog.Level level : RobotLog.Level.values()) {
+			String name = level.name().charAt(0) + level.name().substring(1).toLowerCase();
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(name, level == RobotLog.level());
+			item.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					RobotLog.setLevel(level);
+				}
+			});
+			levels.add(item);
+			debugMenu.add(item);
+		}
+		debugMenu.addSeparator();
+		for (int i = 1; i <= 2; i++) {
+			final int id = i;
+			final JCheckBoxMenuItem item = new JCheckBoxMenuItem("Robot " + id, RobotLog.robotEnabled(id));
+			item.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					worldComp.setLogging(id, item.isSelected());
+				}
+			});
+			debugMenu.add(item);
+		}
+	}
+
+	/**
+	 * Saving the game as a replay, and playing replays at a choice of speeds
+	 * from any turn.
+	 */
+	private JMenu createReplayMenu() {
+		JMenu replayMenu = new JMenu("Replay");
+		JMenuItem record = new JMenuItem("Record...");
+		JMenuItem open = new JMenuItem("Open...");
+		JMenu speedMenu = new JMenu("Speed");
+		JMenuItem seek = new JMenuItem("Go to turn...");
+		replayMenu.add(record);
+		replayMenu.add(open);
+		replayMenu.add(speedMenu);
+		replayMenu.add(seek);
+
+		record.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser(".");
+				if (chooser.showSaveDialog(RoboGame.this) == JFileChooser.APPROVE_OPTION) {
+					try {
+						worldComp.recordTo(chooser.getSelectedFile());
+					} catch (IOException ex) {
+						JOptionPane.showMessageDialog(RoboGame.this, "Couldn't save the replay: " + ex.getMessage());
+					}
+				}
+			}
+		});
+		open.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				File file = getCodeFile();
+				if (file == null) {
+					return;
+				}
+				try {
+					worldComp.loadReplay(file);
+					pack();
+				} catch (IOException ex) {
+					JOptionPane.showMessageDialog(RoboGame.this, "Couldn't open the replay: " + ex.getMessage());
+				}
+			}
+		});
+		ButtonGroup speeds = new ButtonGroup();
+		for (final int speed : new int[] { 1, 4, 16, 64, 256 }) {
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(speed + "x", speed == 1);
+			item.addActionListener(new ActionListener() {
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					worldComp.setReplaySpeed(speed);
+				}
+			});
+			speeds.add(item);
+			speedMenu.add(item);
+		}
+		seek.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (!worldComp.isReplaying()) {
+					return;
+				}
+				String turn = JOptionPane.showInputDialog(RoboGame.this, "Turn:", worldComp.replayTurn());
+				if (turn != null && turn.trim().matches("\\d+")) {
+					worldComp.seekReplay(Integer.parseInt(turn.trim()));
+				}
+			}
+		});
+		return replayMenu;
+	}
+
 	private void createMenu() {
 		JMenuBar menu = new JMenuBar();
 
@@ -47,8 +151,6 @@ public class RoboGame extends JFrame {
 		final JMenuItem load2 = new JMenuItem("Robot 2");
 		final JMenuItem start = new JMenuItem("Start");
 		final JMenuItem reset = new JMenuItem("Reset");
-		final JMenuItem debugOn = new JMenuItem("On");
-		final JMenuItem debugOff = new JMenuItem("Off");
 		JMenuItem quit = new JMenuItem("Quit");
 
 		menu.add(loadMenu);
@@ -57,8 +159,8 @@ public class RoboGame extends JFrame {
 		menu.add(start);
 		menu.add(reset);
 		menu.add(debugMenu);
-		debugMenu.add(debugOn);
-		debugMenu.add(debugOff);
+		menu.add(createReplayMenu());
+		addDebugItems(debugMenu);
 		menu.add(quit);
 		setJMenuBar(menu);
 
@@ -99,6 +201,7 @@ public class RoboGame extends JFrame {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				worldComp.reset();
+				pack();
 				if (code1 != null) {
 					worldComp.loadRobotProgram(1, code1);
 				}
@@ -112,22 +215,10 @@ public class RoboGame extends JFrame {
 			}
 		});
 
-		debugOn.addActionListener(new ActionListener() {
-			@Override
-			public void actionPerformed(ActionEvent e) {
-				debugDisplay = true;
-			}
-		});
-		debugOff.addActionListener(new ActionListener() {
-			@Override
-			public void actionPerformed(ActionEvent e) {
-				debugDisplay = false;
-			}
-		});
-
 		quit.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				worldComp.stopRecording();
 				System.exit(0);
 			}
 		});
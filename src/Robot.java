@@ -1,16 +1,14 @@
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.imageio.ImageIO;
 
@@ -27,8 +25,29 @@ public class Robot {
 	 * Move forward one step.
 	 */
 	public void move() {
-		debug("move");
+		move(1);
+	}
+
+	/**
+	 * Move forward the given number of steps (at least one), one step per
+	 * turn. The robot is only blocked once for the whole move; it stops early
+	 * if it runs out of fuel or is cancelled.
+	 */
+	public void move(int steps) {
+		if (steps > 1)
+			debug(RobotLog.Level.DEBUG, "move ", steps);
+		else
+			debug(RobotLog.Level.DEBUG, "move");
 		currentAction = ACTION_MOVE;
+		remainingSteps = Math.max(1, steps) - 1;
+		moveTarget();
+		processFuelAndBlock();
+		readState();
+	}
+
+	/** Sets the target to the next cell forward, unless the other robot is heading there */
+	private void moveTarget() {
+		int fromX = targetX, fromY = targetY;
 		if (dir == DIRECTION.NORTH)
 			targetY -= 1;
 		else if (dir == DIRECTION.WEST)
@@ -39,25 +58,20 @@ public class Robot {
 			targetX += 1;
 		targetX = Math.max(0, targetX);
 		targetY = Math.max(0, targetY);
-		targetX = Math.min(11, targetX);
-		targetY = Math.min(11, targetY);
-		Robot other = world.getOtherRobot(this);
-		if (other != null) {
-			if (other.targetX == targetX && other.targetY == targetY) {
-				// not allowed to move
-				targetX = x;
-				targetY = y;
-			}
+		targetX = Math.min(world.getSize() - 1, targetX);
+		targetY = Math.min(world.getSize() - 1, targetY);
+		if (!world.claim(this, fromX, fromY, targetX, targetY)) {
+			// not allowed to move, another robot is heading there
+			targetX = x;
+			targetY = y;
 		}
-		processFuelAndBlock();
-		readState();
 	}
 
 	/**
 	 * Turn 90 degrees to the left
 	 */
 	public void turnLeft() {
-		debug("turnL");
+		debug(RobotLog.Level.DEBUG, "turnL");
 		currentAction = ACTION_TURN_LEFT;
 		switch (dir) {
 		case NORTH:
@@ -81,7 +95,7 @@ public class Robot {
 	 * Turn 90 degrees to the right
 	 */
 	public void turnRight() {
-		debug("turnR");
+		debug(RobotLog.Level.DEBUG, "turnR");
 		currentAction = ACTION_TURN_RIGHT;
 		switch (dir) {
 		case NORTH:
@@ -105,7 +119,7 @@ public class Robot {
 	 * Turn 180 degrees.
 	 */
 	public void turnAround() {
-		debug("turnAround");
+		debug(RobotLog.Level.DEBUG, "turnAround");
 		currentAction = ACTION_TURN_AROUND;
 		switch (dir) {
 		case NORTH:
@@ -130,7 +144,7 @@ public class Robot {
 	 * cannot steal fuel, but this robot will use up fuel faster.
 	 */
 	public void setShield(boolean shield) {
-		debug("shield " + (shield ? "on" : "off"));
+		debug(RobotLog.Level.DEBUG, shield ? "shield on" : "shield off");
 		this.shield = shield;
 		readState();
 	}
@@ -139,7 +153,7 @@ public class Robot {
 	 * Take fuel barrel or siphon fuel from other robot.
 	 */
 	public void takeFuel() {
-		debug("takeFuel");
+		debug(RobotLog.Level.DEBUG, "takeFuel");
 		currentAction = ACTION_TAKE_FUEL;
 		processFuelAndBlock();
 		readState();
@@ -149,8 +163,20 @@ public class Robot {
 	 * Do nothing and wait.
 	 */
 	public void idleWait() {
-		debug("wait");
+		idleWait(1);
+	}
+
+	/**
+	 * Do nothing and wait for the given number of turns (at least one),
+	 * blocking only once for all of them.
+	 */
+	public void idleWait(int turns) {
+		if (turns > 1)
+			debug(RobotLog.Level.DEBUG, "wait ", turns);
+		else
+			debug(RobotLog.Level.DEBUG, "wait");
 		currentAction = ACTION_WAIT;
+		remainingSteps = Math.max(1, turns) - 1;
 		processFuelAndBlock();
 		readState();
 	}
@@ -167,15 +193,29 @@ public class Robot {
 	public int getDistanceToWall() {
 		if (cancelled)
 			throw new RobotInterruptedException();
+		return wallDistance();
+	}
+
+	/**
+	 * All of the sensor values for the current turn, computed once when the
+	 * turn started. Reading these is much cheaper than calling the sensor
+	 * methods, which check for cancellation and print debug output on every
+	 * call.
+	 */
+	public SensorSnapshot sensors() {
+		return sensors;
+	}
+
+	private int wallDistance() {
 		switch (dir) {
 		case NORTH:
 			return y;
 		case SOUTH:
-			return 11 - y;
+			return world.getSize() - 1 - y;
 		case WEST:
 			return x;
 		case EAST:
-			return 11 - x;
+			return world.getSize() - 1 - x;
 		}
 		return 0;
 	}
@@ -190,12 +230,12 @@ public class Robot {
 	public int getOpponentLR() {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		if (otherRobotPos == null) {
-			debug("oppLR=INFINTY");
+		if (opponent == Cell.NONE) {
+			debug(RobotLog.Level.TRACE, "oppLR=", INFINITY);
 			return INFINITY;
 		} else {
-			debug("oppLR=" + otherRobotPos.x);
-			return otherRobotPos.x;
+			debug(RobotLog.Level.TRACE, "oppLR=", Cell.x(opponent));
+			return Cell.x(opponent);
 		}
 	}
 
@@ -209,12 +249,12 @@ public class Robot {
 	public int getOpponentFB() {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		if (otherRobotPos == null) {
-			debug("oppFB=INFINTY");
+		if (opponent == Cell.NONE) {
+			debug(RobotLog.Level.TRACE, "oppFB=", INFINITY);
 			return INFINITY;
 		} else {
-			debug("oppFB=" + otherRobotPos.y);
-			return otherRobotPos.y;
+			debug(RobotLog.Level.TRACE, "oppFB=", Cell.y(opponent));
+			return Cell.y(opponent);
 		}
 	}
 
@@ -224,8 +264,8 @@ public class Robot {
 	public int numBarrels() {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		debug("numBarrels = " + barrels.size());
-		return barrels.size();
+		debug(RobotLog.Level.TRACE, "numBarrels = ", barrelCount);
+		return barrelCount;
 	}
 
 	/**
@@ -264,8 +304,8 @@ public class Robot {
 	public int getBarrelLR(int n) {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		int val = (n >= barrels.size()) ? INFINITY : barrels.get(n).x;
-		debug(((n == 0) ? "" : (n + "th")) + "closestBarrelLR = " + ((val == INFINITY) ? "INFINITY" : "" + val));
+		int val = barrelLR(n);
+		debug(RobotLog.Level.TRACE, n, "closestBarrelLR = ", val);
 		return val;
 	}
 
@@ -279,11 +319,31 @@ public class Robot {
 	public int getBarrelFB(int n) {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		int val = (n >= barrels.size()) ? INFINITY : barrels.get(n).y;
-		debug(((n == 0) ? "" : (n + "th")) + "closestBarrelFB = " + ((val == INFINITY) ? "INFINITY" : "" + val));
+		int val = barrelFB(n);
+		debug(RobotLog.Level.TRACE, n, "closestBarrelFB = ", val);
+		return val;
+	}
+
+	/**
+	 * Distance (in moves, ignoring turns) to the nth fuel barrel.
+	 * 
+	 * @return INFINITY if there are less than n barrels
+	 */
+	public int getBarrelDist(int n) {
+		if (cancelled)
+			throw new RobotInterruptedException();
+		int val = barrelDist(n);
+		debug(RobotLog.Level.TRACE, n, "closestBarrelDist = ", val);
 		return val;
 	}
 
+	/**
+	 * Fuel this robot has gained from barrels and from siphoning other robots.
+	 */
+	public int fuelTaken() {
+		return fuelTaken;
+	}
+
 	/**
 	 * Gets the amount of fuel this robot has remaining.
 	 * 
@@ -292,7 +352,7 @@ public class Robot {
 	public int getFuel() {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		debug("fuel=" + fuel);
+		debug(RobotLog.Level.TRACE, "fuel=", fuel);
 		return fuel;
 	}
 
@@ -302,7 +362,7 @@ public class Robot {
 	public boolean isShieldOn() {
 		if (cancelled)
 			throw new RobotInterruptedException();
-		debug(shield ? "shield is on" : "shield is off");
+		debug(RobotLog.Level.TRACE, shield ? "shield is on" : "shield is off");
 		return shield;
 	}
 
@@ -319,22 +379,73 @@ public class Robot {
 	private static final int
 	    FUEL_IDLE = 3, FUEL_MOVE = 6, FUEL_TURN = 5, FUEL_SHIELD = 15;
 
+	/**
+	 * How many loop iterations a program may run between two actions before
+	 * it is forced to wait a turn.
+	 */
+	public static final int INSTRUCTION_BUDGET = 10000;
+
         private enum DIRECTION { NORTH, WEST, SOUTH, EAST }
 
         private World world;
-	private Point otherRobotPos;
-	private List<Point> barrels = new ArrayList<Point>();
+	/** the nearest opponent relative to the robot, as a Cell */
+	private int opponent = Cell.NONE;
+	/** the nearest barrels found this turn relative to the robot, as Cells */
+	private int[] barrels = new int[1];
+	private int barrelsFound, barrelCount;
+	/** for BarrelIndex.nearest, kept so finding barrels doesn't allocate */
+	private long[] nearest = new long[1];
+	private volatile SensorSnapshot sensors;
 	private RobotProgramNode program;
+	/** the running program's variables, indexed by the slots the parser assigned */
+	private int[] variables = new int[0];
 
-	private boolean shield, dead, finished, cancelled;
+	private boolean shield, dead;
+	private volatile boolean finished, cancelled;
 	private int fuel = 100, targetFuel;
+	/** fuel gained from barrels and other robots */
+	private int fuelTaken;
 	private int x, y, targetX, targetY;
         private DIRECTION dir, targetDir;
     //	private int x, y, dir, targetX, targetY, targetDir;
-	private int currentAction;
+	/**
+	 * The action waiting for the next turn, 0 once the world has carried it
+	 * out. Written by both the robot's thread and the world's, so volatile.
+	 */
+	private volatile int currentAction;
+	/**
+	 * The robot's thread, published (after the action's targets are set) each
+	 * time it blocks so the world knows who to wake.
+	 */
+	private volatile Thread waiter;
+	/** turns left in a multi-step move or wait after the current one */
+	private int remainingSteps;
+	/** turns since the robot was made, and the last action it used fuel for, for the trace */
+	private int turn, lastAction;
+	private final TraceRecorder trace = new TraceRecorder();
+	private int budget = INSTRUCTION_BUDGET;
 	private String colour;
-	private BufferedImage robotImage1, robotImage2, shieldImage;
 	private boolean noWait = false;
+	/** run by a LockstepEngine: actions return straight away instead of blocking */
+	private boolean lockstep = false;
+	/** whether this robot logs its actions, see RobotLog */
+	private volatile boolean logging = true;
+
+	/** images are loaded when first drawn, and shared by every robot */
+	private static final Map<String, BufferedImage> images = new ConcurrentHashMap<>();
+
+	private static BufferedImage image(String name) {
+		BufferedImage image = images.get(name);
+		if (image == null) {
+			try {
+				image = ImageIO.read(new File("assets/" + name + ".png"));
+				images.put(name, image);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return image;
+	}
 
 	public Robot(World world, int x, int y, String colour, boolean noWait) {
 		this.world = world;
@@ -344,27 +455,79 @@ public class Robot {
 		this.noWait = noWait;
 		targetX = x;
 		targetY = y;
-		dir = (y < World.SIZE / 2) ? DIRECTION.SOUTH : DIRECTION.NORTH;
+		dir = (y < world.getSize() / 2) ? DIRECTION.SOUTH : DIRECTION.NORTH;
 		targetDir = dir;
 		targetFuel = fuel;
-		try {
-			robotImage1 = ImageIO.read(new File("assets/robot_" + colour + "_1.png"));
-			robotImage2 = ImageIO.read(new File("assets/robot_" + colour + "_2.png"));
-			shieldImage = ImageIO.read(new File("assets/shield.png"));
-		} catch (IOException e) {
-			e.printStackTrace();
+		sensors = snapshot();
+	}
+
+	/**
+	 * Records the state of the robot in its trace, used for automarking. The
+	 * text is only made when the trace is printed.
+	 */
+	public void readState() {
+		if (lockstep) {
+			// lockstep games are run for their result, they don't keep a trace
+			return;
 		}
+		trace.record(turn, x, y, dir.ordinal(), fuel, shield, lastAction);
 	}
 
-	private ArrayList<String> history = new ArrayList<>();
+	/** The robot's state after each of its actions so far */
+	TraceRecorder trace() {
+		return trace;
+	}
+
+	String state() {
+		return "x=" + x + " y=" + y + " dir=" + dir + " fuel=" + fuel + " shield=" + shield;
+	}
+
+	/** The name of the direction with the given ordinal, as state() prints it */
+	static String directionName(int ordinal) {
+		return DIRECTION.values()[ordinal].name();
+	}
 
 	/**
-	 * Encodes the state of the robot, used for automarking.
+	 * Puts this robot in lockstep mode, where actions only set up what the robot
+	 * will do next turn and return, for a LockstepEngine to run the turn.
 	 */
-	public void readState() {
-		String state = "x=" + x + " y=" + y + " dir=" + dir + " fuel=" + fuel + " shield=" + shield;
-		history.add(state);
-		System.out.println(state);
+	void setLockstep(boolean lockstep) {
+		this.lockstep = lockstep;
+	}
+
+	int getX() {
+		return x;
+	}
+
+	int getY() {
+		return y;
+	}
+
+	/** The direction's ordinal: north, west, south or east */
+	int getDirection() {
+		return dir.ordinal();
+	}
+
+	/** The fuel left, without the checks and logging of getFuel */
+	int fuelLevel() {
+		return fuel;
+	}
+
+	boolean shielded() {
+		return shield;
+	}
+
+	String getColour() {
+		return colour;
+	}
+
+	boolean isFinished() {
+		return finished;
+	}
+
+	/** Whether the robot has an action waiting for the next turn */
+	boolean actionPending() {
+		return currentAction != 0;
 	}
 
 	/**
@@ -373,6 +536,18 @@ public class Robot {
 	 */
 	public void setProgram(RobotProgramNode prog) {
 		program = prog;
+		variables = new int[(prog != null) ? prog.frameSize() : 0];
+	}
+
+	/**
+	 * Value of a variable of the running program, 0 until it's assigned.
+	 */
+	public int getVariable(int slot) {
+		return variables[slot];
+	}
+
+	public void setVariable(int slot, int value) {
+		variables[slot] = value;
 	}
 
 	/**
@@ -435,12 +610,30 @@ public class Robot {
 			break;
 		}
 
+		boolean moving = ((int) (time * 10)) % 2 == 0 && currentAction < ACTION_TAKE_FUEL && currentAction > 0;
+		double fuelCurrent = targetFuel * time + fuel * (1 - time);
+		if (fuelCurrent <= 0)
+			dead = true;
+		draw(g2d, colour, x, y, angle, moving, shield, fuelCurrent);
+	}
+
+	/**
+	 * Draws a robot centred on (x, y) pixels, turned angle radians clockwise
+	 * from north. A moving robot is drawn with its other image, so it looks
+	 * like it's walking; also used to draw replays.
+	 */
+	static void draw(Graphics2D g2d, String colour, double x, double y, double angle, boolean moving, boolean shield,
+			double fuelCurrent) {
+		BufferedImage robotImage1 = image("robot_" + colour + "_1");
+		BufferedImage robotImage2 = image("robot_" + colour + "_2");
+		BufferedImage shieldImage = image("shield");
+
 		AffineTransform trans = new AffineTransform();
 		trans.translate(x, y);
 		trans.rotate(angle);
 		trans.translate(-robotImage1.getWidth() / 2d, -robotImage1.getHeight() / 2d);
 
-		if (((int) (time * 10)) % 2 == 0 && currentAction < ACTION_TAKE_FUEL && currentAction > 0) {
+		if (moving) {
 			g2d.drawImage(robotImage2, trans, null);
 		} else {
 			g2d.drawImage(robotImage1, trans, null);
@@ -452,10 +645,6 @@ public class Robot {
 			g2d.drawImage(shieldImage, trans, null);
 		}
 
-		double fuelCurrent = targetFuel * time + fuel * (1 - time);
-		if (fuelCurrent <= 0)
-			dead = true;
-
 		// draw fuel indicator
 		Arc2D fuelArc = new Arc2D.Double(x - 10, y - 10, 20, 20, -90, 360d * fuelCurrent / 100d, Arc2D.OPEN);
 		g2d.setStroke(new BasicStroke(3));
@@ -467,28 +656,98 @@ public class Robot {
 		return dead;
 	}
 
-	private Point getOtherRobotPosition() {
+	private int getOtherRobotPosition() {
 		Robot other = world.getOtherRobot(this);
-		return (other != null) ? toRelative(new Point(other.x, other.y)) : null;
+		return (other != null) ? toRelative(other.x, other.y) : Cell.NONE;
 	}
 
-	private Point toRelative(Point p) {
-		int rx = p.x;
-		int ry = p.y;
+	/** The cell (rx, ry) relative to the robot: x is left-right and y front-back */
+	private int toRelative(int rx, int ry) {
 		switch (dir) {
 		case NORTH:
-			return new Point(rx - x, y - ry);
+			return Cell.pack(rx - x, y - ry);
 		case SOUTH:
-			return new Point(x - rx, ry - y);
+			return Cell.pack(x - rx, ry - y);
 		case WEST:
-			return new Point(y - ry, x - rx);
+			return Cell.pack(y - ry, x - rx);
 		case EAST:
-			return new Point(ry - y, rx - x);
+			return Cell.pack(ry - y, rx - x);
+		}
+		return Cell.NONE;
+	}
+
+	/** The inverse of toRelative */
+	private int toAbsolute(int lr, int fb) {
+		switch (dir) {
+		case NORTH:
+			return Cell.pack(x + lr, y - fb);
+		case SOUTH:
+			return Cell.pack(x - lr, y + fb);
+		case WEST:
+			return Cell.pack(x - fb, y - lr);
+		case EAST:
+			return Cell.pack(x + fb, y + lr);
+		}
+		return Cell.NONE;
+	}
+
+	/**
+	 * The nth closest barrel relative to the robot (packed as a Cell), NONE if
+	 * there are fewer barrels. As many as the program is known to read are
+	 * found each turn, any further ones the first time they're asked for.
+	 */
+	private int barrel(int n) {
+		if (n < 0) {
+			return Cell.NONE;
+		}
+		if (n >= barrelsFound && n < barrelCount) {
+			// grow geometrically, so reading every barrel in turn isn't quadratic
+			findBarrels(Math.max(n + 1, 2 * barrelsFound));
+		}
+		return (n < barrelsFound) ? barrels[n] : Cell.NONE;
+	}
+
+	/** The nth closest barrel's sensors, for the compiled engines (no debug output) */
+	int barrelLR(int n) {
+		int barrel = barrel(n);
+		return (barrel == Cell.NONE) ? INFINITY : Cell.x(barrel);
+	}
+
+	int barrelFB(int n) {
+		int barrel = barrel(n);
+		return (barrel == Cell.NONE) ? INFINITY : Cell.y(barrel);
+	}
+
+	int barrelDist(int n) {
+		int barrel = barrel(n);
+		return (barrel == Cell.NONE) ? INFINITY : Math.abs(Cell.x(barrel)) + Math.abs(Cell.y(barrel));
+	}
+
+	/**
+	 * Finds the k nearest barrels, reusing the arrays from last time unless
+	 * they're too small. k is limited to the barrels there are, so a program
+	 * asking for a huge index doesn't allocate room for barrels that don't
+	 * exist.
+	 */
+	private void findBarrels(int k) {
+		k = Math.min(k, world.getBarrels().size());
+		if (nearest.length < k) {
+			nearest = new long[Math.max(k, 2 * nearest.length)];
+			barrels = new int[nearest.length];
+		}
+		barrelsFound = world.getBarrels().nearest(x, y, k, nearest);
+		for (int i = 0; i < barrelsFound; i++) {
+			int cell = BarrelIndex.cell(nearest[i]);
+			barrels[i] = toRelative(Cell.x(cell), Cell.y(cell));
 		}
-		return null;
 	}
 
-	private double getAngle(DIRECTION direction) {
+	/** The angle a robot facing the direction with this ordinal is drawn at */
+	static double angle(int direction) {
+		return getAngle(DIRECTION.values()[direction]);
+	}
+
+	private static double getAngle(DIRECTION direction) {
 		switch (direction) {
 		case NORTH:
 			return 0;
@@ -504,6 +763,7 @@ public class Robot {
 
 	private void processFuel() {
 		// use fuel
+		lastAction = currentAction;
 		targetFuel = fuel;
 		switch (currentAction) {
 		case ACTION_MOVE:
@@ -519,22 +779,21 @@ public class Robot {
 			targetFuel -= FUEL_TURN;
 			break;
 		case ACTION_TAKE_FUEL:
-			if (world.getAvailableFuel().contains(new Point(x, y))) {
-				world.getAvailableFuel().remove(new Point(x, y));
+			if (world.getBarrels().remove(x, y)) {
+				fuelTaken += 100 - targetFuel;
 				targetFuel = 100;
 				return;
 			} else {// try to siphon fuel
-				Robot other = world.getOtherRobot(this);
+				int front = toAbsolute(0, 1);
+				Robot other = world.robotAt(Cell.x(front), Cell.y(front));
 				if (other != null && !other.shield) {
-					Point otherP = getOtherRobotPosition(); // relative position
-					if (otherP.x == 0 && otherP.y == 1) {
-						System.out.println("Taking fuel");
-						int takeFuel = Math.min(25, other.targetFuel / 2);
-						takeFuel = Math.min(other.targetFuel, takeFuel);
-						targetFuel = Math.min(100, targetFuel + takeFuel);
-						other.targetFuel -= takeFuel;
-						return;
-					}
+					debug(RobotLog.Level.INFO, "taking fuel");
+					int takeFuel = Math.min(25, other.targetFuel / 2);
+					takeFuel = Math.min(other.targetFuel, takeFuel);
+					fuelTaken += Math.min(100, targetFuel + takeFuel) - targetFuel;
+					targetFuel = Math.min(100, targetFuel + takeFuel);
+					other.targetFuel -= takeFuel;
+					return;
 				}
 			}
 			targetFuel -= FUEL_IDLE;
@@ -552,47 +811,102 @@ public class Robot {
 			throw new RobotInterruptedException();
 		// use fuel
 		processFuel();
-		if (this.noWait) {
-			updatePending();
+		if (this.lockstep) {
+			// the engine runs the turn
+		} else if (this.noWait) {
+			do {
+				updatePending();
+			} while (currentAction != 0);
 		} else {
+			waiter = Thread.currentThread();
+			// updatePending clears currentAction before it reads waiter, so
+			// either we see the 0 here or it sees us and unparks
 			while (currentAction != 0) {
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-				}
+				LockSupport.park(this);
 			}
 		}
+		budget = INSTRUCTION_BUDGET;
+	}
+
+	/**
+	 * Charged by the interpreters once per loop iteration. A program that
+	 * loops through its whole budget without doing an action (which would
+	 * otherwise spin forever without ever reaching a point where it can be
+	 * cancelled) is made to wait a turn, or stopped if it's out of fuel.
+	 */
+	public void chargeInstruction() {
+		if (--budget < 0) {
+			overBudget();
+		}
+	}
+
+	private void overBudget() {
+		if (cancelled || fuel <= 0)
+			throw new RobotInterruptedException();
+		debug(RobotLog.Level.DEBUG, "over instruction budget, waiting");
+		idleWait();
 	}
 
 	/**
 	 * Called by the "World" only.
 	 */
 	public void updatePending() {
+		// this volatile read pairs with the robot publishing itself in
+		// processFuelAndBlock, so the targets it set before blocking are visible
+		Thread blocked = waiter;
+		turn++;
 		// reset turn
 		x = targetX;
 		y = targetY;
 		dir = targetDir;
 		fuel = targetFuel;
+		if (lockstep && fuel <= 0) {
+			// there's no GUI drawing the robot to notice it's out of fuel
+			dead = true;
+		}
 		if (finished) {
 			currentAction = ACTION_WAIT;
 			processFuel();
 		}
-		otherRobotPos = getOtherRobotPosition();
-		barrels = new ArrayList<Point>(world.getAvailableFuel());
-		for (int i = 0; i < barrels.size(); i++) {
-			Point p = toRelative(barrels.get(i));
-			barrels.set(i, p);
+		// only work out what the program can actually read
+		int needed = (program != null) ? program.sensorMask() : SensorSnapshot.ALL;
+		opponent = ((needed & SensorSnapshot.OPPONENT) != 0) ? getOtherRobotPosition() : Cell.NONE;
+		if ((needed & SensorSnapshot.BARREL_POSITIONS) != 0) {
+			barrelCount = world.getBarrels().size();
+			findBarrels((program != null) ? program.barrelDepth() : 1);
+		} else {
+			barrelsFound = 0;
+			barrelCount = ((needed & SensorSnapshot.BARREL_COUNT) != 0) ? world.getBarrels().size() : 0;
 		}
-		Collections.sort(barrels, new Comparator<Point>() {
-
-			@Override
-			public int compare(Point p1, Point p2) {
-				int d1 = Math.abs(p1.x) + Math.abs(p1.y);
-				int d2 = Math.abs(p2.x) + Math.abs(p2.y);
-				return d1 - d2;
-			}
-		});
+		sensors = snapshot();
+		if (remainingSteps > 0 && !cancelled && !finished && fuel > 0) {
+			// carry on with the next step of a multi-step action, without
+			// waking the robot's thread
+			remainingSteps--;
+			readState();
+			if (currentAction == ACTION_MOVE)
+				moveTarget();
+			processFuel();
+			return;
+		}
+		remainingSteps = 0;
 		currentAction = 0;
+		// read waiter again, the robot may only have blocked since the read above
+		LockSupport.unpark(blocked != null ? blocked : waiter);
+	}
+
+	private SensorSnapshot snapshot() {
+		int oppLR = (opponent == Cell.NONE) ? INFINITY : Cell.x(opponent);
+		int oppFB = (opponent == Cell.NONE) ? INFINITY : Cell.y(opponent);
+		int barrelLR = (barrelsFound == 0) ? INFINITY : Cell.x(barrels[0]);
+		int barrelFB = (barrelsFound == 0) ? INFINITY : Cell.y(barrels[0]);
+		int barrelDist = (barrelsFound == 0) ? INFINITY : Math.abs(barrelLR) + Math.abs(barrelFB);
+		if (lockstep && sensors != null) {
+			// nothing else can be reading it, the game is on this thread
+			sensors.set(fuel, oppLR, oppFB, barrelCount, barrelLR, barrelFB, barrelDist, wallDistance());
+			return sensors;
+		}
+		return new SensorSnapshot(fuel, oppLR, oppFB, barrelCount, barrelLR, barrelFB, barrelDist, wallDistance());
 	}
 
 	public String toString() {
@@ -600,15 +914,33 @@ public class Robot {
 	}
 
 	/**
-	 * print a message about the action to System.out if debugging is currently
-	 * turned on.
+	 * Logs an action, or a call to a sensor method, if this robot's output
+	 * and the level are turned on. Callers pass a constant label and the value separately,
+	 * so nothing is built otherwise; the text is made on the log's thread.
 	 */
-	private void debug(String action) {
-		if (RoboGame.debugDisplay && program != null) {
-			System.out.println(colour + " robot: " + action);
+	private void debug(RobotLog.Level level, String label) {
+		debug(level, 0, label, RobotLog.NO_VALUE);
+	}
+
+	private void debug(RobotLog.Level level, String label, int value) {
+		debug(level, 0, label, value);
+	}
+
+	private void debug(RobotLog.Level level, int nth, String label, int value) {
+		if (logging && program != null && !lockstep && RobotLog.enabled(level)) {
+			RobotLog.log(level, colour, nth, label, value);
 		}
 	}
 
+	/** Turns this robot's debug output on or off */
+	public void setLogging(boolean on) {
+		logging = on;
+	}
+
+	public boolean isLogging() {
+		return logging;
+	}
+
 	/**
 	 * What the robot will do if it has no valid controller
 	 */
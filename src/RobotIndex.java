@@ -0,0 +1,232 @@
+import java.util.Arrays;
+
+/**
+ * The robots in a world, by the cell each is heading for. Only one robot can
+ * claim a cell, which is what stops robots moving into each other.
+ *
+ * The claims are kept in a coarse grid of square buckets, with about one
+ * bucket per robot, so the memory used depends on the number of robots rather
+ * than the size of the world. Each bucket is a small open addressing table
+ * from packed cell to robot, so claiming and looking up cells doesn't
+ * allocate. A robot's nearest opponent is found by searching outwards from
+ * its bucket, as BarrelIndex does for barrels, skipping empty buckets and
+ * stopping once no bucket further out can hold anything closer.
+ *
+ * Robots claim cells from their own threads, so each bucket is locked while
+ * it's read or changed. A robot only ever holds one bucket's lock at a time,
+ * and never for long.
+ */
+class RobotIndex {
+
+	/** most buckets along a side, so searching a big, sparse map doesn't visit lots of empty buckets */
+	private static final int MAX_BUCKETS = 64;
+
+	private final int size;
+	/** width and height of a bucket, in cells */
+	private final int bucket;
+	private final int buckets;
+	private final Bucket[] claims;
+
+	RobotIndex(int size, int robots) {
+		this.size = size;
+		int side = Math.min(MAX_BUCKETS, (int) Math.ceil(Math.sqrt(robots)));
+		bucket = (size + side - 1) / side;
+		buckets = (size + bucket - 1) / bucket;
+		claims = new Bucket[buckets * buckets];
+		for (int i = 0; i < claims.length; i++) {
+			claims[i] = new Bucket();
+		}
+	}
+
+	private Bucket bucket(int x, int y) {
+		return claims[(y / bucket) * buckets + x / bucket];
+	}
+
+	/** The robot heading for a cell, null if there isn't one or it's outside the world */
+	Robot get(int x, int y) {
+		if (x < 0 || y < 0 || x >= size || y >= size) {
+			return null;
+		}
+		return bucket(x, y).get(Cell.pack(x, y));
+	}
+
+	/** Claims a cell for a robot, returns false if another robot has it */
+	boolean add(Robot robot, int x, int y) {
+		return bucket(x, y).add(Cell.pack(x, y), robot);
+	}
+
+	/** Gives up a robot's claim on a cell, if it has one */
+	void remove(Robot robot, int x, int y) {
+		bucket(x, y).remove(Cell.pack(x, y), robot);
+	}
+
+	/**
+	 * The live robot other than the given one nearest to (x, y), by Manhattan
+	 * distance to the cell it's heading for, or null if there isn't one.
+	 * Robots the same distance away are ordered by column, then by row from
+	 * the bottom.
+	 */
+	Robot nearest(Robot robot, int x, int y) {
+		for (;;) {
+			long best = search(robot, x, y);
+			if (best == Long.MAX_VALUE) {
+				return null;
+			}
+			// the search finds the cell rather than the robot, so it needn't
+			// allocate anything to return both; if the robot has moved off the
+			// cell since, which only another thread can have done, look again
+			int dx = (int) ((best >>> 16) & 0xFFFF) - 0x8000, dy = 0x8000 - (int) (best & 0xFFFF);
+			Robot other = get(x + dx, y + dy);
+			if (other != null && other != robot && !other.isDead()) {
+				return other;
+			}
+		}
+	}
+
+	/** The key (see Bucket.nearest) of the nearest robot, Long.MAX_VALUE if there isn't one */
+	private long search(Robot robot, int x, int y) {
+		long best = Long.MAX_VALUE;
+		int bx = x / bucket, by = y / bucket;
+		int maxRing = Math.max(Math.max(bx, by), Math.max(buckets - 1 - bx, buckets - 1 - by));
+		for (int r = 0; r <= maxRing; r++) {
+			// the buckets r away, top and bottom rows then the sides between them
+			for (int i = -r; i <= r; i++) {
+				best = search(bx + i, by - r, robot, x, y, best);
+				if (r > 0) {
+					best = search(bx + i, by + r, robot, x, y, best);
+				}
+			}
+			for (int j = -r + 1; j <= r - 1; j++) {
+				best = search(bx - r, by + j, robot, x, y, best);
+				best = search(bx + r, by + j, robot, x, y, best);
+			}
+			// every robot further out is more than r buckets away
+			if (best != Long.MAX_VALUE && (best >>> 32) <= (long) r * bucket) {
+				break;
+			}
+		}
+		return best;
+	}
+
+	private long search(int bx, int by, Robot robot, int x, int y, long best) {
+		if (bx < 0 || by < 0 || bx >= buckets || by >= buckets) {
+			return best;
+		}
+		return claims[by * buckets + bx].nearest(robot, x, y, best);
+	}
+
+	/**
+	 * The claims in one bucket, as a linear probing table from packed cell to
+	 * robot. It starts small and doubles when it's half full, and removing a
+	 * claim shifts the claims after it back rather than leaving a marker, so a
+	 * bucket robots keep moving through never fills up.
+	 */
+	private static final class Bucket {
+
+		private static final int EMPTY = Cell.NONE;
+
+		/** slots a bucket starts with, room for more robots than usually gather in one, as growing allocates */
+		private static final int SLOTS = 32;
+
+		private int[] cells = new int[SLOTS];
+		private Robot[] robots = new Robot[SLOTS];
+		private int count;
+
+		Bucket() {
+			Arrays.fill(cells, EMPTY);
+		}
+
+		private static int hash(int cell) {
+			int h = cell * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		/** The slot holding the cell, or the empty slot where it would go */
+		private int find(int cell) {
+			int mask = cells.length - 1;
+			int i = hash(cell) & mask;
+			while (cells[i] != EMPTY && cells[i] != cell) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		synchronized Robot get(int cell) {
+			return robots[find(cell)];
+		}
+
+		synchronized boolean add(int cell, Robot robot) {
+			int i = find(cell);
+			if (cells[i] != EMPTY) {
+				return robots[i] == robot;
+			}
+			if (2 * (count + 1) > cells.length) {
+				grow();
+				i = find(cell);
+			}
+			cells[i] = cell;
+			robots[i] = robot;
+			count++;
+			return true;
+		}
+
+		synchronized void remove(int cell, Robot robot) {
+			int i = find(cell);
+			if (cells[i] == EMPTY || robots[i] != robot) {
+				return;
+			}
+			int mask = cells.length - 1;
+			// move back each following claim that may go in the hole, which is
+			// any whose own slot isn't between the hole and where it is now
+			int hole = i;
+			for (int j = (i + 1) & mask; cells[j] != EMPTY; j = (j + 1) & mask) {
+				int home = hash(cells[j]) & mask;
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					cells[hole] = cells[j];
+					robots[hole] = robots[j];
+					hole = j;
+				}
+			}
+			cells[hole] = EMPTY;
+			robots[hole] = null;
+			count--;
+		}
+
+		private void grow() {
+			int[] oldCells = cells;
+			Robot[] oldRobots = robots;
+			cells = new int[oldCells.length * 2];
+			robots = new Robot[cells.length];
+			Arrays.fill(cells, EMPTY);
+			for (int i = 0; i < oldCells.length; i++) {
+				if (oldCells[i] != EMPTY) {
+					int j = find(oldCells[i]);
+					cells[j] = oldCells[i];
+					robots[j] = oldRobots[i];
+				}
+			}
+		}
+
+		/**
+		 * Returns the smaller of best and the key of the nearest live robot in
+		 * the bucket other than the given one. A key is the distance in the
+		 * high half, then the column and the row (highest first) to break
+		 * ties, so the smallest is the nearest.
+		 */
+		synchronized long nearest(Robot robot, int x, int y, long best) {
+			if (count == 0) {
+				return best;
+			}
+			for (int i = 0; i < cells.length; i++) {
+				Robot other = robots[i];
+				if (other == null || other == robot || other.isDead()) {
+					continue;
+				}
+				int dx = Cell.x(cells[i]) - x, dy = Cell.y(cells[i]) - y;
+				long key = ((long) (Math.abs(dx) + Math.abs(dy)) << 32) | ((dx + 0x8000L) << 16) | (0x8000L - dy);
+				best = Math.min(best, key);
+			}
+			return best;
+		}
+	}
+}
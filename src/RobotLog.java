@@ -0,0 +1,223 @@
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The robots' debug output. Robots log from their own threads on every action,
+ * so logging must not slow them down or change the timing of a game:
+ *
+ * - callers check enabled() before logging, and log a constant label and an
+ * int rather than a string, so nothing is built when the level is off
+ *
+ * - events go on a lock free queue, and a daemon thread formats them and
+ * writes them to System.out in batches, so a robot never waits for the console
+ *
+ * - if the writer falls too far behind, new events are dropped (and counted)
+ * rather than queued without limit
+ *
+ * The level can be changed at any time, from the Debug menu or with the
+ * robot.log system property (off, info, debug or trace), and each robot's
+ * output can be turned on and off by its number.
+ */
+public class RobotLog {
+
+	public enum Level {
+		/** nothing */
+		OFF,
+		/** things that rarely happen, like a robot siphoning fuel */
+		INFO,
+		/** every action */
+		DEBUG,
+		/**
+		 * every action, and every call to one of Robot's sensor methods. The
+		 * lowered engines read the turn's SensorSnapshot instead, so a
+		 * program they run only logs its actions
+		 */
+		TRACE;
+
+		/** Looks up a level by (case insensitive) name, or returns the fallback */
+		public static Level fromName(String name, Level fallback) {
+			for (Level level : values()) {
+				if (level.name().equalsIgnoreCase(name)) {
+					return level;
+				}
+			}
+			return fallback;
+		}
+	}
+
+	/** logged without a value */
+	public static final int NO_VALUE = Integer.MIN_VALUE;
+
+	/** events waiting to be written before new ones are dropped */
+	private static final int MAX_PENDING = 1 << 16;
+
+	/** events written per call to the stream */
+	private static final int BATCH = 256;
+
+	/** how long the writer sleeps when there's nothing to write */
+	private static final long IDLE_NANOS = 2000000;
+
+	private static volatile Level level = Level.fromName(System.getProperty("robot.log"), Level.TRACE);
+
+	/** a bit per robot number (below 64) whose output is turned off */
+	private static final AtomicLong muted = new AtomicLong();
+
+	private static final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pending = new AtomicInteger();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final Thread writer = startWriter();
+
+	private RobotLog() {
+	}
+
+	public static Level level() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	/** Whether events at this level are being logged */
+	public static boolean enabled(Level at) {
+		return at != Level.OFF && at.compareTo(level) <= 0;
+	}
+
+	/** Whether robot number id's output is turned on, which it is unless turned off */
+	public static boolean robotEnabled(int id) {
+		return id < 0 || id >= 64 || (muted.get() & (1L << id)) == 0;
+	}
+
+	/** Turns robot number id's output on or off, for robots made after this */
+	public static void setRobotEnabled(int id, boolean on) {
+		if (id < 0 || id >= 64) {
+			return;
+		}
+		long bit = 1L << id;
+		long old;
+		do {
+			old = muted.get();
+		} while (!muted.compareAndSet(old, on ? (old & ~bit) : (old | bit)));
+	}
+
+	/** Events dropped because the writer was too far behind */
+	public static long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs "source robot: label", followed by value unless it's NO_VALUE, and
+	 * "INFINITY" if it's Robot.INFINITY. The nth closest barrel is logged
+	 * with an "nth" prefix when nth is more than 0. Never blocks.
+	 */
+	public static void log(Level at, String source, int nth, String label, int value) {
+		if (!enabled(at)) {
+			return;
+		}
+		if (pending.incrementAndGet() > MAX_PENDING) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.offer(new Event(source, nth, label, value));
+	}
+
+	public static void log(Level at, String source, String label, int value) {
+		log(at, source, 0, label, value);
+	}
+
+	public static void log(Level at, String source, String label) {
+		log(at, source, 0, label, NO_VALUE);
+	}
+
+	/**
+	 * Waits until everything logged so far has been written, for when the
+	 * output needs to be in order with something printed directly.
+	 */
+	public static void flush() {
+		while (pending.get() > 0 && writer.isAlive()) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+	}
+
+	// =======================================================
+	// Writer
+	// =======================================================
+
+	private static final class Event {
+
+		final String source;
+		final int nth;
+		final String label;
+		final int value;
+
+		Event(String source, int nth, String label, int value) {
+			this.source = source;
+			this.nth = nth;
+			this.label = label;
+			this.value = value;
+		}
+
+		void format(StringBuilder out) {
+			out.append(source).append(" robot: ");
+			if (nth > 0) {
+				out.append(nth).append("th");
+			}
+			out.append(label);
+			if (value == Robot.INFINITY) {
+				out.append("INFINITY");
+			} else if (value != NO_VALUE) {
+				out.append(value);
+			}
+			out.append(System.lineSeparator());
+		}
+	}
+
+	private static Thread startWriter() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				StringBuilder batch = new StringBuilder();
+				for (;;) {
+					if (!write(batch)) {
+						LockSupport.parkNanos(IDLE_NANOS);
+					}
+				}
+			}
+		}, "robot log");
+		thread.setDaemon(true);
+		thread.start();
+		// a daemon thread is stopped at exit, so write what's left first
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}));
+		return thread;
+	}
+
+	/** Writes a batch of events, returns false if there weren't any */
+	private static boolean write(StringBuilder batch) {
+		batch.setLength(0);
+		int n = 0;
+		Event event;
+		while (n < BATCH && (event = queue.poll()) != null) {
+			event.format(batch);
+			n++;
+		}
+		if (n == 0) {
+			return false;
+		}
+		// System.out is looked up each time, as it can be replaced
+		PrintStream out = System.out;
+		out.print(batch);
+		out.flush();
+		pending.addAndGet(-n);
+		return true;
+	}
+}
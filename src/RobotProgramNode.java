@@ -5,4 +5,27 @@
 
 interface RobotProgramNode {
 	public void execute(Robot robot);
+
+	/**
+	 * The number of variable slots the program needs in the robot's frame.
+	 */
+	public default int frameSize() {
+		return 0;
+	}
+
+	/**
+	 * The SensorSnapshot groups this program can read, so the robot can skip
+	 * working out the rest each turn.
+	 */
+	public default int sensorMask() {
+		return SensorSnapshot.ALL;
+	}
+
+	/**
+	 * How many of the nearest barrels the robot should find each turn. Reading
+	 * any further ones still works, they're just found when first asked for.
+	 */
+	public default int barrelDepth() {
+		return 1;
+	}
 }
@@ -0,0 +1,87 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of thread each robot's program runs on. Chosen with the
+ * robot.threads system property (platform or virtual), and can be changed at
+ * runtime; it applies to worlds started after the change.
+ *
+ * A robot's thread spends nearly all its time parked waiting for the next
+ * turn, so with virtual threads a JVM can run thousands of games without
+ * thousands of OS threads. Robots park with LockSupport, never while holding a
+ * monitor, so a waiting virtual thread doesn't pin its carrier. Virtual
+ * threads need Java 21; they are looked up reflectively so this still builds
+ * and runs on older JVMs, where VIRTUAL falls back to platform threads.
+ */
+public enum RobotThreads {
+
+	/** one OS thread per robot */
+	PLATFORM {
+		@Override
+		ThreadFactory factory() {
+			return new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r);
+				}
+			};
+		}
+	},
+
+	/** one virtual thread per robot, or platform threads if the JVM has none */
+	VIRTUAL {
+		@Override
+		ThreadFactory factory() {
+			return (virtualFactory != null) ? virtualFactory : PLATFORM.factory();
+		}
+	};
+
+	private static final ThreadFactory virtualFactory = lookupVirtualFactory();
+
+	private static volatile RobotThreads current = fromName(System.getProperty("robot.threads"), PLATFORM);
+
+	public static RobotThreads current() {
+		return current;
+	}
+
+	public static void setCurrent(RobotThreads threads) {
+		current = threads;
+	}
+
+	/** Whether this JVM has virtual threads */
+	public static boolean virtualAvailable() {
+		return virtualFactory != null;
+	}
+
+	/**
+	 * Looks up a kind of thread by (case insensitive) name, or returns the
+	 * fallback.
+	 */
+	public static RobotThreads fromName(String name, RobotThreads fallback) {
+		if (name != null) {
+			for (RobotThreads t : values()) {
+				if (t.name().equalsIgnoreCase(name)) {
+					return t;
+				}
+			}
+		}
+		return fallback;
+	}
+
+	/** Thread.ofVirtual().factory(), or null before Java 21 */
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = ofVirtual.getReturnType().getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The factory robot threads are made with.
+	 */
+	abstract ThreadFactory factory();
+}
@@ -0,0 +1,79 @@
+/**
+ * Everything a robot's sensors can report, for one turn. The world doesn't
+ * change between two actions, so Robot.updatePending computes all of the
+ * values once per turn and publishes them here; the interpreters read them
+ * from here instead of calling the Robot sensor methods. Only the robot can
+ * change a snapshot.
+ *
+ * A robot playing in a lockstep game updates one snapshot in place each turn,
+ * since everything runs on one thread. Otherwise each turn gets a new one, so
+ * the robot's thread never sees a snapshot half way through changing.
+ */
+public final class SensorSnapshot {
+
+	/**
+	 * Groups of sensors, for RobotProgramNode.sensorMask. Fuel and wall
+	 * distance are always available, they cost nothing to compute.
+	 */
+	public static final int OPPONENT = 1, BARREL_COUNT = 2, BARREL_POSITIONS = 4,
+			ALL = OPPONENT | BARREL_COUNT | BARREL_POSITIONS;
+
+	private int fuel;
+	private int oppLR, oppFB;
+	private int numBarrels;
+	private int barrelLR, barrelFB, barrelDist;
+	private int wallDist;
+
+	SensorSnapshot(int fuel, int oppLR, int oppFB, int numBarrels, int barrelLR, int barrelFB, int barrelDist, int wallDist) {
+		set(fuel, oppLR, oppFB, numBarrels, barrelLR, barrelFB, barrelDist, wallDist);
+	}
+
+	void set(int fuel, int oppLR, int oppFB, int numBarrels, int barrelLR, int barrelFB, int barrelDist, int wallDist) {
+		this.fuel = fuel;
+		this.oppLR = oppLR;
+		this.oppFB = oppFB;
+		this.numBarrels = numBarrels;
+		this.barrelLR = barrelLR;
+		this.barrelFB = barrelFB;
+		this.barrelDist = barrelDist;
+		this.wallDist = wallDist;
+	}
+
+	public int fuel() {
+		return fuel;
+	}
+
+	public int oppLR() {
+		return oppLR;
+	}
+
+	public int oppFB() {
+		return oppFB;
+	}
+
+	public int numBarrels() {
+		return numBarrels;
+	}
+
+	public int barrelLR() {
+		return barrelLR;
+	}
+
+	public int barrelFB() {
+		return barrelFB;
+	}
+
+	public int barrelDist() {
+		return barrelDist;
+	}
+
+	public int wallDist() {
+		return wallDist;
+	}
+
+	public String toString() {
+		return "fuel=" + fuel + " oppLR=" + oppLR + " oppFB=" + oppFB + " numBarrels=" + numBarrels
+				+ " barrelLR=" + barrelLR + " barrelFB=" + barrelFB
+				+ " barrelDist=" + barrelDist + " wallDist=" + wallDist;
+	}
+}
@@ -0,0 +1,420 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Tournament split between worker JVMs, for tournaments too big for one
+ * heap. The coordinator splits the games into batches and starts the
+ * workers; they share nothing but a spool directory:
+ *
+ * - job: the programs directory, seed, number of seeds, turns per game and
+ * batch size, and each program's name and content hash
+ *
+ * - pending/N: batch N, waiting for a worker
+ *
+ * - claimed/N.W: batch N, being played by worker W
+ *
+ * - done/N: the tallies from batch N
+ *
+ * A worker claims a batch by renaming it from pending to claimed, which only
+ * one worker can do, and writes its tallies to a temporary file that's then
+ * renamed into done, so a result is either all there or not there at all.
+ * When a worker the coordinator started dies, its claimed batches go back to
+ * pending and another worker is started; finished batches are kept. Running
+ * the coordinator again on the same spool carries on where it stopped.
+ *
+ * Because it's all files, workers can also be started by hand on other hosts
+ * that share the spool directory: ShardedTournament worker spool name. Only
+ * workers the coordinator started are restarted if they die, but a worker
+ * touches its claim every HEARTBEAT_MILLIS while it plays, and a claim left
+ * untouched for CLAIM_TIMEOUT_MILLIS is taken to be a dead worker's and made
+ * pending again. (If the worker was only slow, the batch is played twice,
+ * which does no harm as the results are the same.)
+ *
+ * Usage: ShardedTournament directory spool [workers] [seeds] [maxTicks] [batchSize] [seed]
+ */
+public class ShardedTournament {
+
+	/** how often the coordinator checks on the workers */
+	private static final long POLL_MILLIS = 100;
+
+	/** how often a worker touches the batch it's playing */
+	private static final long HEARTBEAT_MILLIS = 5000;
+
+	/** how long a claim can go untouched before it's requeued */
+	private static final long CLAIM_TIMEOUT_MILLIS = 60000;
+
+	private final Path spool, pending, claimed, done;
+
+	public ShardedTournament(Path spool) {
+		this.spool = spool;
+		pending = spool.resolve("pending");
+		claimed = spool.resolve("claimed");
+		done = spool.resolve("done");
+	}
+
+	// =======================================================
+	// Coordinator
+	// =======================================================
+
+	/**
+	 * Sets up the spool for a tournament between the named programs, or
+	 * checks it's for the same one (with the same programs) if it's already
+	 * set up. Any batch that isn't done is made pending again, as no workers
+	 * should be running. Returns the number of batches.
+	 */
+	int prepare(File directory, List<String> names, long seed, int seeds, int maxTicks, int batchSize, int games)
+			throws IOException {
+		Files.createDirectories(pending);
+		Files.createDirectories(claimed);
+		Files.createDirectories(done);
+		Properties job = new Properties();
+		job.setProperty("directory", directory.getAbsolutePath());
+		job.setProperty("seed", Long.toString(seed));
+		job.setProperty("seeds", Integer.toString(seeds));
+		job.setProperty("maxTicks", Integer.toString(maxTicks));
+		job.setProperty("batchSize", Integer.toString(batchSize));
+		job.setProperty("games", Integer.toString(games));
+		job.putAll(programs(directory, names));
+		Path jobFile = spool.resolve("job");
+		if (Files.exists(jobFile)) {
+			if (!readJob().equals(job)) {
+				throw new IOException(spool + " is being used for a different tournament, or the programs have changed");
+			}
+		} else {
+			write(job, jobFile);
+		}
+		int batches = (games + batchSize - 1) / batchSize;
+		requeue(null);
+		for (int n = 0; n < batches; n++) {
+			String name = Integer.toString(n);
+			if (!Files.exists(done.resolve(name)) && !Files.exists(pending.resolve(name))) {
+				Files.createFile(pending.resolve(name));
+			}
+		}
+		return batches;
+	}
+
+	/**
+	 * Each program's name and the hash ProgramCache keys it by, as
+	 * "program.N" properties, so a tournament can tell if a program changed.
+	 */
+	private static Properties programs(File directory, List<String> names) throws IOException {
+		Properties programs = new Properties();
+		for (int i = 0; i < names.size(); i++) {
+			byte[] source = Files.readAllBytes(new File(directory, names.get(i)).toPath());
+			programs.setProperty("program." + i, names.get(i) + " " + ProgramCache.key(source));
+		}
+		return programs;
+	}
+
+	/** The "program.N" properties of a job */
+	private static Properties programs(Properties job) {
+		Properties programs = new Properties();
+		for (String key : job.stringPropertyNames()) {
+			if (key.startsWith("program.")) {
+				programs.setProperty(key, job.getProperty(key));
+			}
+		}
+		return programs;
+	}
+
+	private Properties readJob() throws IOException {
+		Properties job = new Properties();
+		try (InputStream in = Files.newInputStream(spool.resolve("job"))) {
+			job.load(in);
+		}
+		return job;
+	}
+
+	/**
+	 * Makes the batches claimed by a worker (or by any worker, if worker is
+	 * null) pending again, unless the worker finished them.
+	 */
+	private void requeue(String worker) throws IOException {
+		for (Path claim : list(claimed)) {
+			String name = claim.getFileName().toString();
+			if (worker == null || name.substring(name.lastIndexOf('.') + 1).equals(worker)) {
+				requeueClaim(claim);
+			}
+		}
+	}
+
+	/** Requeues the claims whose workers haven't touched them for CLAIM_TIMEOUT_MILLIS */
+	private void requeueStale() throws IOException {
+		long now = System.currentTimeMillis();
+		for (Path claim : list(claimed)) {
+			try {
+				if (now - Files.getLastModifiedTime(claim).toMillis() > CLAIM_TIMEOUT_MILLIS) {
+					System.out.println("Nothing has touched " + claim.getFileName() + " for "
+							+ CLAIM_TIMEOUT_MILLIS / 1000 + "s, requeueing it");
+					requeueClaim(claim);
+				}
+			} catch (NoSuchFileException e) {
+				// the worker finished it
+			}
+		}
+	}
+
+	private void requeueClaim(Path claim) throws IOException {
+		String name = claim.getFileName().toString();
+		String batch = name.substring(0, name.lastIndexOf('.'));
+		if (Files.exists(done.resolve(batch))) {
+			Files.deleteIfExists(claim);
+		} else {
+			try {
+				move(claim, pending.resolve(batch));
+			} catch (NoSuchFileException e) {
+				// the worker finished it after all
+			}
+		}
+	}
+
+	/**
+	 * Plays the tournament with the given number of worker processes,
+	 * restarting any that die while there are batches left, and requeueing
+	 * stale claims from workers started by hand. Returns every program's
+	 * tallies, or null if workers kept dying.
+	 */
+	Tournament.Tally[] coordinate(int workers, int batches, int programs) throws IOException, InterruptedException {
+		Process[] processes = new Process[workers];
+		String[] names = new String[workers];
+		int started = 0, crashes = 0;
+		while (list(done).size() < batches) {
+			requeueStale();
+			boolean waiting = !list(pending).isEmpty();
+			for (int i = 0; i < workers; i++) {
+				if (processes[i] != null && !processes[i].isAlive()) {
+					if (processes[i].exitValue() != 0) {
+						System.out.println("Worker " + names[i] + " died, requeueing its batches");
+						crashes++;
+						requeue(names[i]);
+						waiting = true;
+					}
+					processes[i] = null;
+				}
+				if (processes[i] == null && waiting) {
+					names[i] = "w" + started++;
+					processes[i] = startWorker(names[i]);
+				}
+			}
+			// a batch that kills every worker that plays it would otherwise be retried forever
+			if (crashes > batches + workers) {
+				System.out.println("Too many workers died, giving up");
+				for (Process process : processes) {
+					if (process != null) {
+						process.destroy();
+					}
+				}
+				return null;
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+		for (Process process : processes) {
+			if (process != null) {
+				process.waitFor();
+			}
+		}
+		return collect(programs);
+	}
+
+	private Process startWorker(String name) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				ShardedTournament.class.getName(), "worker", spool.toString(), name);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.appendTo(spool.resolve(name + ".log").toFile()));
+		return builder.start();
+	}
+
+	/** Adds up the tallies of every finished batch */
+	Tournament.Tally[] collect(int programs) throws IOException {
+		Tournament.Tally[] tallies = new Tournament.Tally[programs];
+		for (int i = 0; i < programs; i++) {
+			tallies[i] = new Tournament.Tally(i);
+		}
+		for (Path result : list(done)) {
+			for (String line : Files.readAllLines(result, StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					Tournament.Tally t = Tournament.Tally.parse(line);
+					tallies[t.program].add(t);
+				}
+			}
+		}
+		return tallies;
+	}
+
+	// =======================================================
+	// Worker
+	// =======================================================
+
+	/**
+	 * Claims and plays batches until there are none left.
+	 */
+	void work(String name) throws IOException {
+		Properties job = readJob();
+		int batchSize = Integer.parseInt(job.getProperty("batchSize"));
+		int games = Integer.parseInt(job.getProperty("games"));
+		File directory = new File(job.getProperty("directory"));
+		List<String> names = new ArrayList<>();
+		Tournament tournament = Tournament.load(directory, Long.parseLong(job.getProperty("seed")),
+				Integer.parseInt(job.getProperty("seeds")), Integer.parseInt(job.getProperty("maxTicks")), names);
+		if (tournament == null || tournament.games() != games || !programs(directory, names).equals(programs(job))) {
+			throw new IOException("the programs have changed since the tournament started");
+		}
+		ForkJoinPool pool = new ForkJoinPool(1);
+		AtomicReference<Path> playing = new AtomicReference<>();
+		Thread heartbeat = startHeartbeat(playing);
+		for (;;) {
+			Path claim = claim(name);
+			if (claim == null) {
+				break;
+			}
+			playing.set(claim);
+			String batch = claim.getFileName().toString();
+			batch = batch.substring(0, batch.lastIndexOf('.'));
+			int start = Integer.parseInt(batch) * batchSize;
+			Tournament.Tally[] tallies = tournament.play(pool, start, Math.min(games, start + batchSize));
+			StringBuilder out = new StringBuilder();
+			for (Tournament.Tally t : tallies) {
+				out.append(t.write()).append('\n');
+			}
+			Path temp = done.resolve("." + batch + "." + name);
+			Files.write(temp, out.toString().getBytes(StandardCharsets.UTF_8));
+			move(temp, done.resolve(batch));
+			Files.deleteIfExists(claim);
+		}
+		heartbeat.interrupt();
+		pool.shutdown();
+	}
+
+	/** Touches the claim being played every HEARTBEAT_MILLIS, so it isn't taken to be stale */
+	private static Thread startHeartbeat(final AtomicReference<Path> playing) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(HEARTBEAT_MILLIS);
+						touch(playing.get());
+					}
+				} catch (InterruptedException e) {
+					// the worker's finished
+				}
+			}
+		}, "heartbeat");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	private static void touch(Path claim) {
+		if (claim == null) {
+			return;
+		}
+		try {
+			Files.setLastModifiedTime(claim, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// it's been finished or requeued
+		}
+	}
+
+	/** Claims a pending batch, returning the claim, or null if there are none */
+	private Path claim(String name) throws IOException {
+		for (Path batch : list(pending)) {
+			Path claim = claimed.resolve(batch.getFileName() + "." + name);
+			// renaming keeps the time the batch was made pending, which would look stale
+			touch(batch);
+			try {
+				move(batch, claim);
+				return claim;
+			} catch (NoSuchFileException e) {
+				// another worker claimed it first
+			}
+		}
+		return null;
+	}
+
+	// =======================================================
+	// Files
+	// =======================================================
+
+	private static void move(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			throw new IOException("the spool directory must support atomic renames", e);
+		}
+	}
+
+	/** The files in a directory, except temporary ones */
+	private static List<Path> list(Path directory) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				if (!file.getFileName().toString().startsWith(".")) {
+					files.add(file);
+				}
+			}
+		}
+		return files;
+	}
+
+	/** Writes properties to a temporary file and renames it into place */
+	private static void write(Properties properties, Path file) throws IOException {
+		Path temp = file.resolveSibling("." + file.getFileName());
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, null);
+		}
+		move(temp, file);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length == 3 && args[0].equals("worker")) {
+			new ShardedTournament(new File(args[1]).toPath()).work(args[2]);
+			return;
+		}
+		if (args.length < 2) {
+			System.out.println("Usage: ShardedTournament directory spool [workers] [seeds] [maxTicks] [batchSize] [seed]");
+			System.out.println("       ShardedTournament worker spool name");
+			return;
+		}
+		File directory = new File(args[0]);
+		int workers = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int seeds = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+		int maxTicks = (args.length > 4) ? Integer.parseInt(args[4]) : 1000;
+		int batchSize = (args.length > 5) ? Integer.parseInt(args[5]) : 1000;
+		long seed = (args.length > 6) ? Long.parseLong(args[6]) : 0;
+
+		List<String> names = new ArrayList<>();
+		Tournament tournament = Tournament.load(directory, seed, seeds, maxTicks, names);
+		if (tournament == null) {
+			return;
+		}
+		ShardedTournament sharded = new ShardedTournament(new File(args[1]).toPath());
+		int batches = sharded.prepare(directory, names, seed, seeds, maxTicks, batchSize, tournament.games());
+		long start = System.nanoTime();
+		Tournament.Tally[] tallies = sharded.coordinate(workers, batches, names.size());
+		long nanos = System.nanoTime() - start;
+		if (tallies == null) {
+			return;
+		}
+		System.out.printf("%d games in %d batches on %d workers in %dms (%.0f games/s)%n", tournament.games(), batches,
+				workers, nanos / 1000000, tournament.games() * 1e9 / nanos);
+		Tournament.report(tallies, names);
+	}
+}
@@ -3,16 +3,20 @@ import java.util.List;
 
 public class StatementNode implements RobotProgramNode{
 
-    loopNode loopNode;
-    actionNode actionNode;
-    whileNode whileNode;
-    ifNode ifNode;
-
-    public StatementNode(loopNode loopNode, actionNode actionNode, whileNode whileNode, ifNode ifNode){
+    final loopNode loopNode;
+    final actionNode actionNode;
+    final whileNode whileNode;
+    final ifNode ifNode;
+    final assignNode assignNode;
+    /** source line the statement starts on, 0 if it wasn't parsed */
+    int line;
+
+    public StatementNode(loopNode loopNode, actionNode actionNode, whileNode whileNode, ifNode ifNode, assignNode assignNode){
         this.loopNode = loopNode;
         this.actionNode = actionNode;
         this.whileNode = whileNode;
         this.ifNode = ifNode;
+        this.assignNode = assignNode;
     }
 
     @Override
@@ -29,17 +33,37 @@ public class StatementNode implements RobotProgramNode{
         else if (this.ifNode != null){
             this.ifNode.execute(robot);
         }
+        else if (this.assignNode != null){
+            this.assignNode.execute(robot);
+        }
     }
 
+
+    @Override
+    public String toString() {
+        if (loopNode != null) return loopNode.toString();
+        if (actionNode != null) return actionNode.toString();
+        if (whileNode != null) return whileNode.toString();
+        if (ifNode != null) return ifNode.toString();
+        if (assignNode != null) return assignNode.toString();
+        return "";
+    }
     /**
      * ============= PROGRAM NODE ===============
      */
     static class programNode implements RobotProgramNode{
 
-        List<StatementNode> program;
+        final List<StatementNode> program;
+        final int frameSize;
 
-        public programNode(List<StatementNode> list){
+        public programNode(List<StatementNode> list, int frameSize){
             this.program = list;
+            this.frameSize = frameSize;
+        }
+
+        @Override
+        public int frameSize() {
+            return frameSize;
         }
 
         @Override
@@ -48,6 +72,15 @@ public class StatementNode implements RobotProgramNode{
                 statement.execute(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (StatementNode statement : program){
+                out.append(statement).append('\n');
+            }
+            return out.toString();
+        }
     }
 
     /**
@@ -55,7 +88,7 @@ public class StatementNode implements RobotProgramNode{
      */
     static class loopNode implements RobotProgramNode{
 
-        blockNode block;
+        final blockNode block;
 
         public loopNode(blockNode b){
             this.block = b;
@@ -63,12 +96,20 @@ public class StatementNode implements RobotProgramNode{
 
         @Override
         public void execute(Robot robot) {
-            while (!robot.isDead()) block.execute(robot);
+            while (!robot.isDead()) {
+                robot.chargeInstruction();
+                block.execute(robot);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "loop" + block;
         }
     }
     static class blockNode implements RobotProgramNode{
 
-        List<StatementNode> statements;
+        final List<StatementNode> statements;
 
         public blockNode(List<StatementNode> statements){
             this.statements = statements;
@@ -80,13 +121,24 @@ public class StatementNode implements RobotProgramNode{
                     statement.execute(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder("{\n");
+            for (StatementNode statement : statements) {
+                for (String line : statement.toString().split("\n")) {
+                    out.append('\t').append(line).append('\n');
+                }
+            }
+            return out.append('}').toString();
+        }
     }
 
     static class whileNode implements RobotProgramNode{
 
 
-        blockNode block;
-        condNode endCondition;
+        final blockNode block;
+        final condNode endCondition;
 
         public whileNode(blockNode b, condNode c){
             this.block = b;
@@ -96,17 +148,23 @@ public class StatementNode implements RobotProgramNode{
         @Override
         public void execute(Robot robot) {
             while (this.endCondition.evaluate(robot)){
+                robot.chargeInstruction();
                 block.execute(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            return "while(" + endCondition + ")" + block;
+        }
     }
 
     static class ifNode implements RobotProgramNode{
 
-        List<ifNode> elif;
-        condNode condition;
-        blockNode blockNode;
-        elseNode elseNode;
+        final List<ifNode> elif;
+        final condNode condition;
+        final blockNode blockNode;
+        final elseNode elseNode;
 
         public ifNode(condNode c, blockNode blockNode, elseNode elseNode, List<ifNode> elif){
             this.condition = c;
@@ -120,18 +178,25 @@ public class StatementNode implements RobotProgramNode{
             if (this.condition.evaluate(robot)){
                 blockNode.execute(robot);
             }
-            else if (elif != null){
-                for (ifNode elifNode : elif){
-                    elifNode.execute(robot);
-                }
+            else if (elif != null && !elif.isEmpty()){
+                // the parser nests any further elifs and the else inside the first elif
+                elif.get(0).execute(robot);
             }
             else if (elseNode != null) elseNode.execute(robot);
         }
+
+        @Override
+        public String toString() {
+            String out = "if(" + condition + ")" + blockNode;
+            if (elif != null && !elif.isEmpty()) out += " el" + elif.get(0);
+            else if (elseNode != null) out += " " + elseNode;
+            return out;
+        }
     }
 
     static class elseNode implements RobotProgramNode{
 
-        blockNode blockNode;
+        final blockNode blockNode;
 
         public elseNode(blockNode blockNode){
             this.blockNode = blockNode;
@@ -141,14 +206,19 @@ public class StatementNode implements RobotProgramNode{
         public void execute(Robot robot){
             this.blockNode.execute(robot);
         }
+
+        @Override
+        public String toString() {
+            return "else" + blockNode;
+        }
     }
     /**
      *  ================= ACTION NODE =================
      */
     static class actionNode implements RobotProgramNode{
 
-        String action;
-        argumentNode args;
+        final String action;
+        final argumentNode args;
 
         public actionNode(String action, argumentNode args){
             this.args = args;
@@ -159,7 +229,7 @@ public class StatementNode implements RobotProgramNode{
         @Override
         public void execute(Robot robot) {
             if (action.equals("move")){
-                robot.move();
+                robot.move(args == null ? 1 : args.evaluate(robot));
             }
             else if (action.equals("turnR")){
                 robot.turnRight();
@@ -180,9 +250,14 @@ public class StatementNode implements RobotProgramNode{
                 robot.setShield(false);
             }
             else{
-                robot.idleWait();
+                robot.idleWait(args == null ? 1 : args.evaluate(robot));
             }
         }
+
+        @Override
+        public String toString() {
+            return action + (args != null ? "(" + args + ")" : "") + ";";
+        }
     }
 
     /**
@@ -191,9 +266,9 @@ public class StatementNode implements RobotProgramNode{
 
     static class relopNode implements RobotConditionalNode{
 
-        String relop;
-        argumentNode arg1;
-        argumentNode arg2;
+        final String relop;
+        final argumentNode arg1;
+        final argumentNode arg2;
 
         public relopNode(String relop, argumentNode arg1, argumentNode arg2){
             this.relop = relop;
@@ -213,13 +288,20 @@ public class StatementNode implements RobotProgramNode{
                 return arg1.evaluate(robot) == arg2.evaluate(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            return relop + "(" + arg1 + ", " + arg2 + ")";
+        }
     }
     static class condNode implements RobotConditionalNode {
 
-        relopNode relopNode;
-        String operation;
-        condNode cond1;
-        condNode cond2;
+        final relopNode relopNode;
+        final String operation;
+        final condNode cond1;
+        final condNode cond2;
+        /** source line the condition starts on, 0 if it wasn't parsed */
+        int line;
 
         public condNode(relopNode relopNode, String operation, condNode cond1, condNode cond2) {
             this.relopNode = relopNode;
@@ -243,12 +325,18 @@ public class StatementNode implements RobotProgramNode{
                 else return !cond1.evaluate(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            if (relopNode != null) return relopNode.toString();
+            return operation + "(" + cond1 + (cond2 != null ? ", " + cond2 : "") + ")";
+        }
     }
     static class opNode implements RobotIntegerNode{
 
-        String type;
-        argumentNode argNode1;
-        argumentNode argNode2;
+        final String type;
+        final argumentNode argNode1;
+        final argumentNode argNode2;
 
 
         public opNode(String type, argumentNode argNode1, argumentNode argNode2){
@@ -271,19 +359,25 @@ public class StatementNode implements RobotProgramNode{
                 return argNode1.evaluate(robot) / argNode2.evaluate(robot);
             }
         }
+
+        @Override
+        public String toString() {
+            return type + "(" + argNode1 + ", " + argNode2 + ")";
+        }
     }
 
     static class argumentNode implements RobotIntegerNode{
 
-        Integer integer;
-        senNode sensor;
-        opNode opNode;
-        variableNode var;
+        final Integer integer;
+        final senNode sensor;
+        final opNode opNode;
+        final variableNode var;
 
-        public argumentNode(Integer integer, senNode sensor, opNode opNode){
+        public argumentNode(Integer integer, senNode sensor, opNode opNode, variableNode var){
             this.integer = integer;
             this.sensor = sensor;
             this.opNode = opNode;
+            this.var = var;
         }
 
         public int evaluate(Robot robot){
@@ -298,15 +392,30 @@ public class StatementNode implements RobotProgramNode{
             }
             else return opNode.evaluate(robot);
         }
+
+        @Override
+        public String toString() {
+            if (integer != null) return integer.toString();
+            if (sensor != null) return sensor.toString();
+            if (var != null) return var.toString();
+            return opNode.toString();
+        }
     }
 
 
     static class senNode implements RobotIntegerNode{
 
-        String sensor;
+        final String sensor;
+        /** which barrel the barrel sensors look at, null for the closest */
+        final argumentNode index;
 
         public senNode(String sensor){
+            this(sensor, null);
+        }
+
+        public senNode(String sensor, argumentNode index){
             this.sensor = sensor;
+            this.index = index;
         }
 
         public int evaluate(Robot robot){
@@ -323,31 +432,66 @@ public class StatementNode implements RobotProgramNode{
                 return robot.numBarrels();
             }
             else if (this.sensor.equals("barrelLR")){
-                return robot.getClosestBarrelLR();
+                return (index == null) ? robot.getClosestBarrelLR() : robot.getBarrelLR(index.evaluate(robot));
             }
             else if (this.sensor.equals("barrelFB")) {
-                return robot.getClosestBarrelFB();
+                return (index == null) ? robot.getClosestBarrelFB() : robot.getBarrelFB(index.evaluate(robot));
+            }
+            else if (this.sensor.equals("barrelDist")) {
+                return robot.getBarrelDist((index == null) ? 0 : index.evaluate(robot));
             }
             else return robot.getDistanceToWall();
         }
+
+        @Override
+        public String toString() {
+            return (index == null) ? sensor : sensor + "(" + index + ")";
+        }
     }
 
+    /**
+     *  ===================== VARIABLE NODES ====================
+     *  Variables are resolved to slots in the robot's frame at parse time.
+     */
     static class variableNode implements RobotIntegerNode{
 
-        Integer integer;
-        senNode sensor;
+        final String name;
+        final int slot;
 
-        public variableNode(Integer integer, senNode sensor){
-            this.integer = integer;
-            this.sensor = sensor;
+        public variableNode(String name, int slot){
+            this.name = name;
+            this.slot = slot;
         }
 
         @Override
         public int evaluate(Robot robot) {
-            if (sensor != null){
-                return sensor.evaluate(robot);
-            }
-            else return integer;
+            return robot.getVariable(slot);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class assignNode implements RobotProgramNode{
+
+        final variableNode var;
+        final argumentNode value;
+
+        public assignNode(variableNode var, argumentNode value){
+            this.var = var;
+            this.value = value;
+        }
+
+        @Override
+        public void execute(Robot robot) {
+            robot.setVariable(var.slot, value.evaluate(robot));
+        }
+
+        @Override
+        public String toString() {
+            return var + " = " + value + ";";
         }
     }
 }
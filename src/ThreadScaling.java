@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Benchmark of how many threaded games one JVM can run at once: starts more
+ * and more games, each with its two robot threads, and steps them all from
+ * one thread. For each kind of robot thread it reports the live thread count,
+ * heap used, resident memory (which is where platform thread stacks show up,
+ * on Linux only) and robot actions per second.
+ *
+ * Usage: ThreadScaling [ticks] [games...]
+ */
+public class ThreadScaling {
+
+	/** a program that never ends, so every robot acts every turn */
+	private static final String PROGRAM = "loop { move; turnL; takeFuel; }";
+
+	public static void main(String[] args) {
+		int ticks = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		int[] games = { 10, 100, 1000 };
+		if (args.length > 1) {
+			games = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++) {
+				games[i - 1] = Integer.parseInt(args[i]);
+			}
+		}
+		RobotLog.setLevel(RobotLog.Level.OFF);
+		RobotProgramNode prog = Lowering.lower(Optimizer.optimize(Parser.parseSource(PROGRAM)));
+		// robots print their state after every action
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		out.println("threads   games  live threads  heap MB  rss MB  actions/s");
+		for (RobotThreads kind : RobotThreads.values()) {
+			if (kind == RobotThreads.VIRTUAL && !RobotThreads.virtualAvailable()) {
+				out.println("virtual threads need Java 21, this is " + System.getProperty("java.version"));
+				continue;
+			}
+			RobotThreads.setCurrent(kind);
+			for (int n : games) {
+				run(out, kind, n, ticks, prog);
+			}
+		}
+	}
+
+	private static void run(PrintStream out, RobotThreads kind, int n, int ticks, RobotProgramNode prog) {
+		World[] worlds = new World[n];
+		for (int i = 0; i < n; i++) {
+			worlds[i] = new World(i);
+			for (int id = 1; id <= 2; id++) {
+				worlds[i].getRobot(id).setProgram(ExecutionEngine.current().prepare(prog));
+			}
+			worlds[i].start();
+		}
+		settle(worlds);
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long rss = residentMemory();
+
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks; t++) {
+			for (World world : worlds) {
+				world.updateWorld();
+			}
+			settle(worlds);
+		}
+		long nanos = System.nanoTime() - start;
+		out.printf("%-8s %6d %13d %8d %7d %10.0f%n", kind.name().toLowerCase(), n, threads,
+				heap / (1024 * 1024), rss / (1024 * 1024), 2.0 * n * ticks * 1e9 / nanos);
+		for (World world : worlds) {
+			world.reset();
+		}
+	}
+
+	/** The resident set size of this process in bytes, or -1 if it isn't known */
+	private static long residentMemory() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+
+	/** Waits until every robot has chosen its next action */
+	private static void settle(World[] worlds) {
+		for (World world : worlds) {
+			for (int id = 1; id <= 2; id++) {
+				Robot robot = world.getRobot(id);
+				while (!robot.actionPending() && !robot.isFinished()) {
+					Thread.yield();
+				}
+			}
+		}
+	}
+}
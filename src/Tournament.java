@@ -0,0 +1,278 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Ranks a directory of robot programs by playing every pair against each
+ * other in lockstep games, once each way round for every seed, without the
+ * GUI.
+ *
+ * Each program is parsed and compiled once and the bytecode is shared by
+ * every game it plays in, which only ever reads it. Games are split between
+ * the threads of a fork join pool with one thread per core; each thread keeps
+ * its own tally and the tallies are added up as the tasks join, so the games
+ * share nothing but the programs and throughput scales with the cores.
+ *
+ * Game n between a pair is played in a world seeded with World.childSeed of
+ * the tournament's seed and n, so the same seed and programs always give the
+ * same results, however the games are split up.
+ *
+ * A win is worth 3 points and a draw 1. Fuel efficiency is the fuel a program
+ * took from barrels and other robots per 100 fuel it used.
+ *
+ * Usage: Tournament directory [seeds] [maxTicks] [threads] [seed]
+ */
+public class Tournament {
+
+	/** games played by one task without splitting it further */
+	private static final int GAMES_PER_TASK = 16;
+
+	private final Bytecode[] programs;
+	private final long seed;
+	private final int seeds, maxTicks;
+	/** the pair in each game, seed * pairs + pair is the game number */
+	private final int[] first, second;
+
+	public Tournament(RobotProgramNode[] programs, long seed, int seeds, int maxTicks) {
+		this.programs = new Bytecode[programs.length];
+		for (int i = 0; i < programs.length; i++) {
+			this.programs[i] = LockstepEngine.compile(programs[i]);
+		}
+		this.seed = seed;
+		this.seeds = seeds;
+		this.maxTicks = maxTicks;
+		int pairs = programs.length * (programs.length - 1);
+		first = new int[pairs];
+		second = new int[pairs];
+		int n = 0;
+		for (int i = 0; i < programs.length; i++) {
+			for (int j = 0; j < programs.length; j++) {
+				if (i != j) {
+					first[n] = i;
+					second[n] = j;
+					n++;
+				}
+			}
+		}
+	}
+
+	public int games() {
+		return seeds * first.length;
+	}
+
+	/** Plays every game on the pool, returning each program's tally */
+	public Tally[] play(ForkJoinPool pool) {
+		return play(pool, 0, games());
+	}
+
+	/**
+	 * Plays the games numbered from start up to end, so a tournament can be
+	 * split into batches (see ShardedTournament).
+	 */
+	public Tally[] play(ForkJoinPool pool, int start, int end) {
+		return pool.invoke(new Games(start, end));
+	}
+
+	/** Plays game number g, adding the result to the tallies */
+	private void play(int g, Tally[] tallies) {
+		int pair = g % first.length;
+		int a = first[pair], b = second[pair];
+		LockstepEngine.Result result = new LockstepEngine(World.childSeed(seed, g / first.length), programs[a], programs[b])
+				.run(maxTicks);
+		tallies[a].add(result, 1);
+		tallies[b].add(result, 2);
+	}
+
+	/** The games from start up to end */
+	@SuppressWarnings("serial")
+	private class Games extends RecursiveTask<Tally[]> {
+
+		private final int start, end;
+
+		Games(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected Tally[] compute() {
+			if (end - start > GAMES_PER_TASK) {
+				int middle = (start + end) >>> 1;
+				Games left = new Games(start, middle);
+				left.fork();
+				Tally[] tallies = new Games(middle, end).compute();
+				Tally[] other = left.join();
+				for (int i = 0; i < tallies.length; i++) {
+					tallies[i].add(other[i]);
+				}
+				return tallies;
+			}
+			Tally[] tallies = new Tally[programs.length];
+			for (int i = 0; i < tallies.length; i++) {
+				tallies[i] = new Tally(i);
+			}
+			for (int g = start; g < end; g++) {
+				play(g, tallies);
+			}
+			return tallies;
+		}
+	}
+
+	/**
+	 * One program's results.
+	 */
+	public static class Tally {
+
+		/** the program's index */
+		public final int program;
+		public int wins, losses, draws;
+		long ticks, fuelTaken, fuelUsed;
+
+		Tally(int program) {
+			this.program = program;
+		}
+
+		void add(LockstepEngine.Result result, int robot) {
+			if (result.winner == 0) {
+				draws++;
+			} else if (result.winner == robot) {
+				wins++;
+			} else {
+				losses++;
+			}
+			ticks += result.survived(robot);
+			fuelTaken += result.fuelTaken(robot);
+			// every robot starts with 100
+			fuelUsed += 100 + result.fuelTaken(robot) - result.fuel(robot);
+		}
+
+		void add(Tally other) {
+			wins += other.wins;
+			losses += other.losses;
+			draws += other.draws;
+			ticks += other.ticks;
+			fuelTaken += other.fuelTaken;
+			fuelUsed += other.fuelUsed;
+		}
+
+		/** The tally as one line of text, read back with parse */
+		String write() {
+			return program + " " + wins + " " + losses + " " + draws + " " + ticks + " " + fuelTaken + " " + fuelUsed;
+		}
+
+		static Tally parse(String line) {
+			String[] fields = line.trim().split(" ");
+			Tally t = new Tally(Integer.parseInt(fields[0]));
+			t.wins = Integer.parseInt(fields[1]);
+			t.losses = Integer.parseInt(fields[2]);
+			t.draws = Integer.parseInt(fields[3]);
+			t.ticks = Long.parseLong(fields[4]);
+			t.fuelTaken = Long.parseLong(fields[5]);
+			t.fuelUsed = Long.parseLong(fields[6]);
+			return t;
+		}
+
+		public int games() {
+			return wins + losses + draws;
+		}
+
+		public int points() {
+			return 3 * wins + draws;
+		}
+
+		/** Average turns the program had fuel for */
+		public double averageTicks() {
+			return (games() == 0) ? 0 : (double) ticks / games();
+		}
+
+		/** Fuel taken per 100 fuel used */
+		public double fuelEfficiency() {
+			return (fuelUsed == 0) ? 0 : 100.0 * fuelTaken / fuelUsed;
+		}
+	}
+
+	/**
+	 * Sets up a tournament between the .prog files in a directory, in name
+	 * order, adding their names to names. Programs that don't parse are left
+	 * out; returns null if there aren't two that do.
+	 */
+	static Tournament load(File directory, long seed, int seeds, int maxTicks, List<String> names) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			System.out.println(directory + " isn't a directory");
+			return null;
+		}
+		Arrays.sort(files);
+		List<RobotProgramNode> loaded = new ArrayList<>();
+		for (File file : files) {
+			if (!file.getName().endsWith(".prog")) {
+				continue;
+			}
+			RobotProgramNode prog = ProgramCache.shared().load(file);
+			if (prog == null) {
+				System.out.println("Skipping " + file.getName() + ", it doesn't parse");
+				continue;
+			}
+			names.add(file.getName());
+			loaded.add(prog);
+		}
+		if (loaded.size() < 2) {
+			System.out.println("A tournament needs at least two programs");
+			return null;
+		}
+		return new Tournament(loaded.toArray(new RobotProgramNode[0]), seed, seeds, maxTicks);
+	}
+
+	/** Prints the tallies as a table, best first */
+	static void report(Tally[] tallies, List<String> names) {
+		Arrays.sort(tallies, new Comparator<Tally>() {
+			@Override
+			public int compare(Tally a, Tally b) {
+				if (a.points() != b.points()) {
+					return Integer.compare(b.points(), a.points());
+				}
+				return Double.compare(b.fuelEfficiency(), a.fuelEfficiency());
+			}
+		});
+		int width = 7;
+		for (String name : names) {
+			width = Math.max(width, name.length());
+		}
+		System.out.printf("%-" + width + "s %6s %6s %6s %6s %9s %9s%n", "program", "points", "won", "lost", "drawn",
+				"avg ticks", "fuel/100");
+		for (Tally t : tallies) {
+			System.out.printf("%-" + width + "s %6d %6d %6d %6d %9.1f %9.1f%n", names.get(t.program), t.points(), t.wins,
+					t.losses, t.draws, t.averageTicks(), t.fuelEfficiency());
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage: Tournament directory [seeds] [maxTicks] [threads] [seed]");
+			return;
+		}
+		int seeds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		int maxTicks = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		int threads = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		long seed = (args.length > 4) ? Long.parseLong(args[4]) : 0;
+
+		List<String> names = new ArrayList<>();
+		Tournament tournament = load(new File(args[0]), seed, seeds, maxTicks, names);
+		if (tournament == null) {
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		long start = System.nanoTime();
+		Tally[] tallies = tournament.play(pool);
+		long nanos = System.nanoTime() - start;
+		pool.shutdown();
+
+		System.out.printf("%d games on %d threads in %dms (%.0f games/s)%n", tournament.games(), threads,
+				nanos / 1000000, tournament.games() * 1e9 / nanos);
+		report(tallies, names);
+	}
+}
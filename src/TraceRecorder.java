@@ -0,0 +1,246 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A robot's state after each of its actions, as fixed width binary records in
+ * a ring buffer. Recording is two array writes, so it can happen on the robot
+ * thread every action; the text the automarker reads ("x=.. y=.. dir=..
+ * fuel=.. shield=..") is only built when the trace is decoded.
+ *
+ * The buffer starts small and doubles up to its capacity. Once it's full, the
+ * oldest records are overwritten, unless the recorder has a spill stream, in
+ * which case the full buffer is handed to a daemon thread that decodes it to
+ * the stream and recording carries on in another, so nothing is lost and the
+ * thread recording doesn't wait for the console. Only if MAX_SPILLING buffers
+ * are waiting to be written (the console can't keep up at all) does it wait
+ * for one. print waits for whatever's been handed off before writing the
+ * rest, so the trace still comes out in order.
+ *
+ * Each record is two longs: the turn, x and y, then the fuel, direction,
+ * shield and action. Saved traces are the records in order, big endian, and
+ * can be printed with: TraceRecorder file
+ */
+public class TraceRecorder {
+
+	/** records kept by default, 1MB */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** buffers a recorder can have waiting to be written before it waits itself */
+	private static final int MAX_SPILLING = 4;
+
+	/** full buffers waiting to be decoded to their spill streams */
+	private static final LinkedBlockingQueue<Spill> spills = new LinkedBlockingQueue<>();
+
+	static {
+		startSpiller();
+	}
+
+	private final int capacity;
+	private long[] records = new long[2 * INITIAL_CAPACITY];
+	/** records are numbered as they're written, record n is at n % length */
+	private long start, written;
+	private long dropped;
+	private PrintStream spill;
+	/** a permit for each buffer that can be handed off, given back once it's written */
+	private final Semaphore spillable = new Semaphore(MAX_SPILLING);
+	/** a written buffer to record into next, so spilling doesn't allocate every time */
+	private final AtomicReference<long[]> spare = new AtomicReference<>();
+
+	public TraceRecorder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/** capacity is rounded up to a power of two */
+	public TraceRecorder(int capacity) {
+		this.capacity = Integer.highestOneBit(Math.max(INITIAL_CAPACITY, capacity) - 1) << 1;
+	}
+
+	/** Decodes the records to the stream when the buffer fills, instead of overwriting them */
+	public void spillTo(PrintStream spill) {
+		this.spill = spill;
+	}
+
+	public void record(int turn, int x, int y, int dir, int fuel, boolean shield, int action) {
+		int length = records.length / 2;
+		if (written - start == length) {
+			if (length < capacity) {
+				grow();
+				length *= 2;
+			} else if (spill != null) {
+				handOff();
+			} else {
+				start++;
+				dropped++;
+			}
+		}
+		int i = (int) (written & (length - 1)) * 2;
+		records[i] = ((long) turn << 32) | ((x & 0xFFFFL) << 16) | (y & 0xFFFFL);
+		records[i + 1] = ((long) fuel << 32) | ((dir & 0xFFL) << 16) | ((shield ? 1L : 0L) << 8) | (action & 0xFFL);
+		written++;
+	}
+
+	private void grow() {
+		int length = records.length / 2;
+		long[] bigger = new long[records.length * 2];
+		for (long n = start; n < written; n++) {
+			int from = (int) (n & (length - 1)) * 2, to = (int) (n & (2 * length - 1)) * 2;
+			bigger[to] = records[from];
+			bigger[to + 1] = records[from + 1];
+		}
+		records = bigger;
+	}
+
+	/** Gives the full buffer to the spill thread and starts an empty one */
+	private void handOff() {
+		spillable.acquireUninterruptibly();
+		spills.add(new Spill(this, records, start, written));
+		long[] next = spare.getAndSet(null);
+		records = (next != null) ? next : new long[records.length];
+		start = written;
+	}
+
+	/** How many records are in the buffer */
+	public int size() {
+		return (int) (written - start);
+	}
+
+	/** Records overwritten because the buffer was full */
+	public long dropped() {
+		return dropped;
+	}
+
+	// =======================================================
+	// Decoding
+	// =======================================================
+
+	/**
+	 * Prints the records in the buffer as text, oldest first, and empties it,
+	 * after waiting for any buffers handed off to be written.
+	 */
+	public void print(PrintStream out) {
+		spillable.acquireUninterruptibly(MAX_SPILLING);
+		spillable.release(MAX_SPILLING);
+		StringBuilder text = new StringBuilder();
+		int length = records.length / 2;
+		for (long n = start; n < written; n++) {
+			int i = (int) (n & (length - 1)) * 2;
+			text.setLength(0);
+			out.println(decode(records[i], records[i + 1], text));
+		}
+		start = written;
+	}
+
+	/** The records in the buffer, oldest first, as saved traces are written */
+	public void save(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+		int length = records.length / 2;
+		for (long n = start; n < written; n++) {
+			int i = (int) (n & (length - 1)) * 2;
+			data.writeLong(records[i]);
+			data.writeLong(records[i + 1]);
+		}
+		data.flush();
+	}
+
+	/** A full buffer, records start up to end of which are to be written */
+	private static final class Spill {
+
+		final TraceRecorder recorder;
+		final long[] records;
+		final long start, end;
+		final PrintStream out;
+
+		Spill(TraceRecorder recorder, long[] records, long start, long end) {
+			this.recorder = recorder;
+			this.records = records;
+			this.start = start;
+			this.end = end;
+			this.out = recorder.spill;
+		}
+
+		void write() {
+			StringBuilder text = new StringBuilder();
+			int length = records.length / 2;
+			for (long n = start; n < end; n++) {
+				int i = (int) (n & (length - 1)) * 2;
+				decode(records[i], records[i + 1], text).append(System.lineSeparator());
+			}
+			out.print(text);
+			out.flush();
+		}
+	}
+
+	private static void startSpiller() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (;;) {
+					Spill spill;
+					try {
+						spill = spills.take();
+					} catch (InterruptedException e) {
+						continue;
+					}
+					try {
+						spill.write();
+					} finally {
+						spill.recorder.spare.set(spill.records);
+						spill.recorder.spillable.release();
+					}
+				}
+			}
+		}, "trace spill");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Prints a saved trace as text */
+	public static void decode(InputStream in, PrintStream out) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+		StringBuilder text = new StringBuilder();
+		for (;;) {
+			long a, b;
+			try {
+				a = data.readLong();
+				b = data.readLong();
+			} catch (EOFException e) {
+				return;
+			}
+			text.setLength(0);
+			out.println(decode(a, b, text));
+		}
+	}
+
+	/** The same text Robot.state gives */
+	private static StringBuilder decode(long a, long b, StringBuilder text) {
+		int x = (short) (a >>> 16), y = (short) a;
+		int fuel = (int) (b >> 32), dir = (int) (b >>> 16) & 0xFF;
+		boolean shield = ((b >>> 8) & 1) != 0;
+		return text.append("x=").append(x).append(" y=").append(y).append(" dir=").append(Robot.directionName(dir))
+				.append(" fuel=").append(fuel).append(" shield=").append(shield);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: TraceRecorder trace-file...");
+		}
+		for (String arg : args) {
+			try (InputStream in = new FileInputStream(arg)) {
+				decode(in, System.out);
+			}
+		}
+	}
+}
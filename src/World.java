@@ -5,105 +5,320 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadFactory;
 
 public class World {
 
+	/**
+	 * The width and height of a world, unless it's made with another size or
+	 * the robot.worldSize property says otherwise.
+	 */
 	public static final int SIZE = 12;
 
-	protected Set<Point> availableFuel = Collections.newSetFromMap(new ConcurrentHashMap<Point, Boolean>());
-	private Random rand = new Random();
+	private final int size;
+	protected final BarrelIndex availableFuel;
+	/** where the fuel goes, see getSeed */
+	private final long seed;
+	private final SplittableRandom rand;
 	protected Robot[] robots;
+	/** profiles of the loaded programs, only when profiling is enabled */
+	protected Profiler[] profilers;
+	/** the robot targeting each cell, made again whenever the robots are */
+	private RobotIndex claims;
+	/** records every turn while a replay is being saved */
+	private volatile ReplayRecorder replay;
 
+	/**
+	 * A world seeded with the robot.seed property, or a random seed if there
+	 * isn't one. getSeed gives the seed, so the game can be played again.
+	 */
 	public World() {
-		robots = new Robot[] { null, new Robot(this, 0, 0, "red", false), new Robot(this, SIZE - 1, SIZE - 1, "blue", false) };
+		this(defaultSeed(), 2, defaultSize());
+	}
+
+	/**
+	 * A world whose fuel is placed using the given seed, so the same programs
+	 * always play out the same way (when run in lockstep).
+	 */
+	public World(long seed) {
+		this(seed, 2);
+	}
+
+	/**
+	 * A seeded world with any number of robots, up to one per cell.
+	 */
+	public World(long seed, int robotCount) {
+		this(seed, robotCount, defaultSize());
+	}
+
+	/**
+	 * A seeded world size cells wide and high.
+	 */
+	public World(long seed, int robotCount, int size) {
+		if (size < 2 || size > Cell.MAX) {
+			throw new IllegalArgumentException("a world must be 2 to " + Cell.MAX + " cells wide, not " + size);
+		}
+		this.size = size;
+		this.seed = seed;
+		// each world has its own generator, so worlds played in parallel don't
+		// share one, and the same seed always puts the fuel in the same places
+		this.rand = new SplittableRandom(seed);
+		availableFuel = new BarrelIndex(size);
+		setRobots(createRobots(robotCount, false));
+	}
+
+	private static int defaultSize() {
+		return Integer.getInteger("robot.worldSize", SIZE);
+	}
+
+	private static long defaultSeed() {
+		Long seed = Long.getLong("robot.seed");
+		return (seed != null) ? seed : new SplittableRandom().nextLong();
+	}
+
+	/**
+	 * The seed for game n of a run started with the given seed. Neighbouring
+	 * n give unrelated seeds, and any game's seed can be worked out on its own
+	 * (unlike SplittableRandom.split), so a batch of games can be split up
+	 * any way and a single game played again.
+	 */
+	public static long childSeed(long seed, long n) {
+		// SplitMix64, as SplittableRandom uses
+		long z = seed + (n + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/** The seed this world's fuel is placed with */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Makes robots 1 to n (index 0 is unused). The first four start in the
+	 * corners, red and blue in opposite corners as always, and the rest are
+	 * spread over the grid.
+	 */
+	protected Robot[] createRobots(int n, boolean noWait) {
+		if (n < 1 || n > size * size) {
+			throw new IllegalArgumentException("can't fit " + n + " robots in the world");
+		}
+		Robot[] robots = new Robot[n + 1];
+		int[][] corners = { { 0, 0 }, { size - 1, size - 1 }, { size - 1, 0 }, { 0, size - 1 } };
+		int stride = (n > 4) ? Math.max(1, (size * size - 4) / (n - 4)) : 1;
+		int cell = 0;
+		for (int i = 1; i <= n; i++) {
+			int x, y;
+			if (i <= 4) {
+				x = corners[i - 1][0];
+				y = corners[i - 1][1];
+			} else {
+				// every stride'th cell that isn't a corner
+				for (int skip = (i == 5) ? 0 : stride; ; cell++) {
+					x = cell % size;
+					y = cell / size;
+					boolean corner = (x == 0 || x == size - 1) && (y == 0 || y == size - 1);
+					if (!corner && skip-- == 0) {
+						break;
+					}
+				}
+			}
+			robots[i] = new Robot(this, x, y, (i % 2 == 1) ? "red" : "blue", noWait);
+		}
+		return robots;
+	}
+
+	protected void setRobots(Robot[] robots) {
+		this.robots = robots;
+		this.profilers = new Profiler[robots.length];
+		claims = new RobotIndex(size, robots.length - 1);
+		for (int i = 1; i < robots.length; i++) {
+			claims.add(robots[i], robots[i].getX(), robots[i].getY());
+			robots[i].setLogging(RobotLog.robotEnabled(i));
+		}
 	}
 
 	/**
 	 * This world can no longer be used after this call.
 	 */
 	public void reset() {
+		stopRecording();
 		availableFuel.clear();
-		for (int i = 1; i <= 2; i++) {
+		for (int i = 1; i < robots.length; i++) {
 			robots[i].updatePending();
 			robots[i].cancel();
 		}
 	}
 
+	/** Every barrel in the world, for drawing */
 	public Set<Point> getAvailableFuel() {
+		return availableFuel.view();
+	}
+
+	public BarrelIndex getBarrels() {
 		return availableFuel;
 	}
 
+	public int getSize() {
+		return size;
+	}
+
 	public void updateWorld() {
 		addFuel(false);
-		for (int i = 1; i <= 2; i++) {
+		for (int i = 1; i < robots.length; i++) {
 			robots[i].updatePending();
 		}
+		ReplayRecorder recording = replay;
+		if (recording != null) {
+			recording.record(this);
+		}
+	}
+
+	/**
+	 * Saves every turn from now on to a replay, starting with the world as it
+	 * is now.
+	 */
+	public void recordTo(ReplayRecorder recording) {
+		stopRecording();
+		recording.record(this);
+		replay = recording;
+	}
+
+	/** Finishes the replay being saved, if there is one */
+	public void stopRecording() {
+		ReplayRecorder recording = replay;
+		replay = null;
+		if (recording != null) {
+			recording.close();
+		}
 	}
 
 	public void loadRobotProgram(int id, File code) {
-		RobotProgramNode prog = Parser.parseFile(code);
+		if (Profiler.ENABLED) {
+			// profiled programs are instrumented copies, so they can't come from the cache
+			profilers[id] = Profiler.load(code);
+			if (profilers[id] != null) {
+				System.out.println("Robot " + id + " now has program (profiled): ");
+				System.out.println(profilers[id].program());
+				robots[id].setProgram(profilers[id].program());
+			}
+			return;
+		}
+		RobotProgramNode prog = ProgramCache.shared().load(code);
 		if (prog != null) {
 			System.out.println("Robot " + id + " now has program: ");
 			System.out.println(prog);
-			robots[id].setProgram(prog);
+			robots[id].setProgram(ExecutionEngine.current().prepare(prog));
 		}
 	}
 
 	public void start() {
-		// add some initial fuel
-		if (availableFuel.isEmpty()) {
-			addFuel(true);
-			addFuel(true);
+		addInitialFuel();
+		ThreadFactory threads = RobotThreads.current().factory();
+		for (int i = 1; i < robots.length; i++) {
+			threads.newThread(robotRunner(i)).start();
 		}
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					robots[1].run();
-				} catch (RobotInterruptedException e) {
-				}
-				robots[1].setFinished(true);
-			}
-		}).start();
-		new Thread(new Runnable() {
+	}
+
+	private Runnable robotRunner(final int id) {
+		return new Runnable() {
 			@Override
 			public void run() {
+				// a long game fills the trace buffer, so print it as it fills rather than lose the start
+				robots[id].trace().spillTo(System.out);
 				try {
-					robots[2].run();
+					robots[id].run();
 				} catch (RobotInterruptedException e) {
 				}
-				robots[2].setFinished(true);
+				robots[id].setFinished(true);
+				robots[id].trace().print(System.out);
+				printProfile(id);
 			}
-		}).start();
+		};
+	}
+
+	protected void printProfile(int id) {
+		if (profilers[id] != null) {
+			System.out.println(profilers[id].report());
+		}
+	}
+
+	/** Adds some initial fuel, unless there's some already */
+	void addInitialFuel() {
+		if (availableFuel.isEmpty()) {
+			addFuel(true);
+			addFuel(true);
+		}
 	}
 
 	public Robot getRobot(int id) {
-		if (id <= 0 || id > robots.length) {
+		if (id <= 0 || id >= robots.length) {
 			return null;
 		}
 		return robots[id];
 	}
 
-	/** Returns the opponent robot of the argument */
+	public int robotCount() {
+		return robots.length - 1;
+	}
+
+	/**
+	 * Returns the live opponent nearest (by Manhattan distance to the cell
+	 * it's heading for) to the argument, null if it has no opponents left.
+	 */
 	public Robot getOtherRobot(Robot robot) {
-		if (robot == robots[2])
-			return robots[1];
-		if (robot == robots[1])
-			return robots[2];
+		return claims.nearest(robot, robot.getX(), robot.getY());
+	}
+
+	/**
+	 * Returns the robot standing on a cell, null if there isn't one. A robot on
+	 * the cell is heading for it or for a neighbouring cell, so only those five
+	 * claims need checking.
+	 */
+	public Robot robotAt(int x, int y) {
+		Robot r;
+		if ((r = standingOn(claimant(x, y), x, y)) != null
+				|| (r = standingOn(claimant(x - 1, y), x, y)) != null
+				|| (r = standingOn(claimant(x + 1, y), x, y)) != null
+				|| (r = standingOn(claimant(x, y - 1), x, y)) != null
+				|| (r = standingOn(claimant(x, y + 1), x, y)) != null) {
+			return r;
+		}
 		return null;
 	}
 
+	private static Robot standingOn(Robot r, int x, int y) {
+		return (r != null && r.getX() == x && r.getY() == y) ? r : null;
+	}
+
+	private Robot claimant(int x, int y) {
+		return claims.get(x, y);
+	}
+
+	/**
+	 * Moves a robot's claim from the cell it was heading for to a new one.
+	 * Fails, keeping the old claim, if another robot already has the new cell.
+	 */
+	boolean claim(Robot robot, int fromX, int fromY, int toX, int toY) {
+		if (fromX == toX && fromY == toY) {
+			return true;
+		}
+		if (!claims.add(robot, toX, toY)) {
+			return false;
+		}
+		claims.remove(robot, fromX, fromY);
+		return true;
+	}
+
 	private void addFuel(boolean definitely) {
 		if (definitely || rand.nextDouble() < 0.2) {
-			int x = rand.nextInt(12);
-			int y = rand.nextInt(12);
-			Point fuel = new Point(x, y);
-			availableFuel.add(fuel);
+			int x = rand.nextInt(size);
+			int y = rand.nextInt(size);
+			availableFuel.add(x, y);
 		}
 	}
 	
@@ -112,7 +327,7 @@ public class World {
 			super();
 			// we remake the robots to have noWait set to true, this makes the program run without the timer.
 			// the blue robot is never used, but the red robot does call some methods on it so we can't make it null.
-			this.robots = new Robot[] { null, new Robot(this, 0, 0, "red", true), new Robot(this, SIZE - 1, SIZE - 1, "blue", true) };
+			setRobots(createRobots(2, true));
 		}
 
 		public static void main(String[] args) throws IOException {
@@ -125,8 +340,13 @@ public class World {
 			RoboGamePrinter rgp = new RoboGamePrinter();
 			
 			// load the program.
-			RobotProgramNode prog = Parser.parseFile(new File(args[0]));
-			rgp.robots[1].setProgram(prog);
+			if (Profiler.ENABLED) {
+				rgp.profilers[1] = Profiler.load(new File(args[0]));
+				rgp.robots[1].setProgram(rgp.profilers[1] == null ? null : rgp.profilers[1].program());
+			} else {
+				RobotProgramNode prog = ExecutionEngine.current().prepare(Lowering.lower(Optimizer.optimize(Parser.parseFile(new File(args[0])))));
+				rgp.robots[1].setProgram(prog);
+			}
 			
 			// load fuel placement from file.
 			List<String> fuel = Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8);
@@ -134,11 +354,17 @@ public class World {
 				String[] coords = line.split("\\s+");
 				int x = Integer.parseInt(coords[0]);
 				int y = Integer.parseInt(coords[1]);
-				rgp.availableFuel.add(new Point(x, y));
+				rgp.availableFuel.add(x, y);
 			}
 			
-			// run the robot.
-			rgp.robots[1].run();
+			// run the robot, printing its trace whenever the buffer fills and at the end.
+			rgp.robots[1].trace().spillTo(System.out);
+			try {
+				rgp.robots[1].run();
+			} catch (RobotInterruptedException e) {
+			}
+			rgp.robots[1].trace().print(System.out);
+			rgp.printProfile(1);
 		}
 	}
 }
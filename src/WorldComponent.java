@@ -10,6 +10,7 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -30,10 +31,23 @@ public class WorldComponent extends JComponent {
 
 	private int frame = 0;
 
+	/**
+	 * The replay being shown instead of the world, if there is one, with
+	 * cursors at the turn shown and the turn after, to animate between them.
+	 * The timer moves the cursors while the GUI draws them, so both hold the
+	 * replay's lock.
+	 */
+	private volatile Replay replay;
+	private Replay.Cursor shown, next;
+	/** the turn shown, and how far it is to the next */
+	private double replayTurn;
+	private volatile double replaySpeed = 1;
+	private final Object replayLock = new Object();
+
 	public WorldComponent() {
 		super();
 		world = new World();
-		setPreferredSize(new Dimension(600, 600));
+		resize(world.getSize());
 
 		try {
 			fuelImage = ImageIO.read(new File("assets/fuel.png"));
@@ -42,23 +56,164 @@ public class WorldComponent extends JComponent {
 		}
 	}
 
+	private void resize(int size) {
+		setPreferredSize(new Dimension(size * GRID_SIZE, size * GRID_SIZE));
+		revalidate();
+	}
+
 	public void start() {
+		stopReplay();
 		timer = new Timer();
 		timer.schedule(new AnimationTask(), 0, ANIMATION_DELAY);
 		world.start();
 	}
 
 	public void reset() {
+		if (timer != null)
+			timer.cancel();
+		stopReplay();
+		world.reset();
+		world = new World();
+	}
+
+	/** Saves the game to a replay, from now until it ends or is reset */
+	public void recordTo(File file) throws IOException {
+		world.recordTo(new ReplayRecorder(file, world));
+	}
+
+	public void stopRecording() {
+		world.stopRecording();
+	}
+
+	// =======================================================
+	// Replays
+	// =======================================================
+
+	/**
+	 * Stops the game and plays a replay from the start, at the current speed.
+	 */
+	public void loadReplay(File file) throws IOException {
+		Replay loaded = new Replay(file);
+		if (loaded.frames() == 0) {
+			throw new IOException(file + " has no turns in it");
+		}
 		if (timer != null)
 			timer.cancel();
 		world.reset();
 		world = new World();
+		synchronized (replayLock) {
+			replay = loaded;
+			shown = replay.cursor();
+			next = replay.cursor();
+			replayTurn = 0;
+			showReplayTurn();
+		}
+		resize(replay.getSize());
+		timer = new Timer();
+		timer.schedule(new ReplayTask(), 0, ANIMATION_DELAY);
+	}
+
+	private void stopReplay() {
+		if (replay == null) {
+			return;
+		}
+		synchronized (replayLock) {
+			replay = null;
+			shown = next = null;
+		}
+		resize(world.getSize());
+	}
+
+	public boolean isReplaying() {
+		return replay != null;
+	}
+
+	/** Turns played per turn of a live game */
+	public void setReplaySpeed(double speed) {
+		replaySpeed = speed;
+	}
+
+	/** Jumps to a turn of the replay */
+	public void seekReplay(int turn) {
+		synchronized (replayLock) {
+			if (replay != null) {
+				replayTurn = Math.max(0, Math.min(turn, replay.frames() - 1));
+				showReplayTurn();
+			}
+		}
+		repaint();
+	}
+
+	/** The turn of the replay being shown, or -1 if there isn't one */
+	public int replayTurn() {
+		synchronized (replayLock) {
+			return (replay == null) ? -1 : (int) replayTurn;
+		}
+	}
+
+	private void showReplayTurn() {
+		int turn = (int) replayTurn;
+		shown.seek(turn);
+		next.seek(turn + 1);
+	}
+
+	/** Draws the replay's robots part way from the turn shown to the next */
+	private void drawReplayRobots(Graphics2D g2d) {
+		double time = replayTurn - (int) replayTurn;
+		for (int i = 1; i <= replay.robotCount(); i++) {
+			double x = shown.x(i) * (1 - time) + next.x(i) * time;
+			double y = shown.y(i) * (1 - time) + next.y(i) * time;
+			x = x * GRID_SIZE + GRID_SIZE / 2d;
+			y = y * GRID_SIZE + GRID_SIZE / 2d;
+			double angle = Robot.angle(shown.direction(i));
+			// directions go anticlockwise, so one step on is a left turn
+			switch ((next.direction(i) - shown.direction(i)) & 3) {
+			case 1:
+				angle -= Math.toRadians(90) * time;
+				break;
+			case 2:
+				angle += Math.toRadians(180) * time;
+				break;
+			case 3:
+				angle += Math.toRadians(90) * time;
+				break;
+			}
+			boolean acting = shown.x(i) != next.x(i) || shown.y(i) != next.y(i) || shown.direction(i) != next.direction(i);
+			boolean moving = acting && ((int) (time * 10)) % 2 == 0;
+			double fuel = shown.fuel(i) * (1 - time) + next.fuel(i) * time;
+			Robot.draw(g2d, replay.colour(i), x, y, angle, moving, shown.shield(i), fuel);
+		}
+	}
+
+	private class ReplayTask extends TimerTask {
+
+		@Override
+		public void run() {
+			synchronized (replayLock) {
+				if (replay == null) {
+					return;
+				}
+				// a live game has a turn every WORLD_UPDATE_DELAY frames
+				replayTurn = Math.min(replayTurn + replaySpeed / WORLD_UPDATE_DELAY, replay.frames() - 1);
+				showReplayTurn();
+			}
+			repaint();
+		}
 	}
 
 	public void loadRobotProgram(int rob, File code) {
 		world.loadRobotProgram(rob, code);
 	}
 
+	/** Turns a robot's debug output on or off, now and after a reset */
+	public void setLogging(int rob, boolean on) {
+		RobotLog.setRobotEnabled(rob, on);
+		Robot robot = world.getRobot(rob);
+		if (robot != null) {
+			robot.setLogging(on);
+		}
+	}
+
 	@Override
 	protected void paintComponent(Graphics g) {
 		Graphics2D g2d = (Graphics2D) g;
@@ -69,24 +224,35 @@ public class WorldComponent extends JComponent {
 		g2d.setColor(Color.BLACK);
 		g2d.setStroke(new BasicStroke(2));
 
-		for (int i = 0; i <= World.SIZE; i++) {
-			Line2D hline = new Line2D.Double(0, i * GRID_SIZE, 600, i * GRID_SIZE);
-			Line2D vline = new Line2D.Double(i * GRID_SIZE, 0, i * GRID_SIZE, 600);
+		synchronized (replayLock) {
+			if (replay != null) {
+				drawGrid(g2d, replay.getSize(), shown.barrels().view());
+				drawReplayRobots(g2d);
+				return;
+			}
+		}
+		drawGrid(g2d, world.getSize(), world.getAvailableFuel());
+		for (int i = 1; i <= world.robotCount(); i++) {
+			Robot rob;
+			if ((rob = world.getRobot(i)) != null)
+				rob.draw(g2d, getTimeRatio());
+		}
+	}
+
+	private void drawGrid(Graphics2D g2d, int size, Set<Point> barrels) {
+		int width = size * GRID_SIZE;
+		for (int i = 0; i <= size; i++) {
+			Line2D hline = new Line2D.Double(0, i * GRID_SIZE, width, i * GRID_SIZE);
+			Line2D vline = new Line2D.Double(i * GRID_SIZE, 0, i * GRID_SIZE, width);
 			g2d.draw(hline);
 			g2d.draw(vline);
 		}
 
-		for (Point fuel : world.getAvailableFuel()) {
+		for (Point fuel : barrels) {
 			int x = fuel.x * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getWidth() / 2;
 			int y = fuel.y * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getHeight() / 2;
 			g2d.drawImage(fuelImage, x, y, null);
 		}
-
-		for (int i = 1; i <= 2; i++) {
-			Robot rob;
-			if ((rob = world.getRobot(i)) != null)
-				rob.draw(g2d, getTimeRatio());
-		}
 	}
 
 	private double getTimeRatio() {
@@ -107,6 +273,7 @@ public class WorldComponent extends JComponent {
 			boolean r2dead = world.getRobot(2).isDead();
 			if (r1dead || r2dead) {
 				timer.cancel();
+				world.stopRecording();
 				timer = null;
 				String msg = (r1dead && r2dead) ? "Both robots" : r1dead ? "Robot 1 (red)" : "Robot 2 (blue)";
 				JOptionPane.showMessageDialog(null, msg + " ran out of fuel!");